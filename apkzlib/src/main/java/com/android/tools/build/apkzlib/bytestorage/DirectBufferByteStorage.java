@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.bytestorage;
+
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Byte storage that keeps data off the Java heap, in direct buffers from a pool shared with other
+ * storages, and moves data to disk when the pool runs out of budget.
+ *
+ * <p>Unlike {@link OverflowToDiskByteStorage}, the memory limit is not per storage: all storages
+ * created by the same {@link DirectBufferByteStorageFactory} share the budget and the LRU queue
+ * that decides which source is moved to disk, so many zip files open at the same time do not
+ * multiply the memory used. A source that does not fit in the budget even after everything else
+ * has been moved to disk is written to disk directly.
+ *
+ * <p>As with {@link OverflowToDiskByteStorage}, sources moved to disk are not loaded back.
+ */
+public class DirectBufferByteStorage implements ByteStorage {
+
+  /** Pool buffers are obtained from. */
+  private final DirectBufferPool pool;
+
+  /** Disk-based storage. */
+  @VisibleForTesting // private otherwise.
+  final TemporaryDirectoryStorage diskStorage;
+
+  /** Sources created by this storage and not yet closed. */
+  private final Set<TrackedSource> liveSources;
+
+  /** Number of bytes in buffers held by this storage. */
+  private long memoryBytesUsed;
+
+  /** Maximum value of {@link #memoryBytesUsed} ever. */
+  private long maxMemoryBytesUsed;
+
+  /** Maximum amount of data used. */
+  private long maxBytesUsed;
+
+  /**
+   * Creates a new storage.
+   *
+   * @param pool the pool to obtain buffers from
+   * @param temporaryDirectoryFactory the factory used to create a temporary directory where to
+   *     overflow to; the created directory will be closed when the storage is closed
+   * @throws IOException failed to create the temporary directory
+   */
+  DirectBufferByteStorage(DirectBufferPool pool, TemporaryDirectoryFactory temporaryDirectoryFactory)
+      throws IOException {
+    this.pool = pool;
+    diskStorage = new TemporaryDirectoryStorage(temporaryDirectoryFactory);
+    liveSources = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    pool.register(this);
+  }
+
+  @Override
+  public CloseableByteSource fromStream(InputStream stream) throws IOException {
+    CloseableByteSourceFromOutputStreamBuilder builder = makeBuilder();
+    ByteStreams.copy(stream, builder);
+    return builder.build();
+  }
+
+  @Override
+  public CloseableByteSourceFromOutputStreamBuilder makeBuilder() throws IOException {
+    return new AbstractCloseableByteSourceFromOutputStreamBuilder() {
+      /** Buffers written so far, all full except the last. */
+      private final List<ByteBuffer> buffers = new ArrayList<>();
+
+      /** Size of the next buffer, buffers double in size up to the maximum. */
+      private int nextBufferSize = DirectBufferPool.MIN_BUFFER_SIZE;
+
+      /** Builder on disk, once the data did not fit in the pool. */
+      @Nullable private CloseableByteSourceFromOutputStreamBuilder diskBuilder;
+
+      @Override
+      protected void doWrite(byte[] b, int off, int len) throws IOException {
+        while (len > 0 && diskBuilder == null) {
+          ByteBuffer current = buffers.isEmpty() ? null : buffers.get(buffers.size() - 1);
+          if (current == null || !current.hasRemaining()) {
+            current = pool.acquire(nextBufferSize);
+            if (current == null) {
+              overflow();
+              break;
+            }
+
+            updateMemoryUsage(current.capacity());
+            buffers.add(current);
+            nextBufferSize = Math.min(nextBufferSize * 2, DirectBufferPool.MAX_BUFFER_SIZE);
+          }
+
+          int count = Math.min(len, current.remaining());
+          current.put(b, off, count);
+          off += count;
+          len -= count;
+        }
+
+        if (len > 0) {
+          diskBuilder.write(b, off, len);
+        }
+      }
+
+      /** Moves what was written so far to disk and continues writing there. */
+      private void overflow() throws IOException {
+        diskBuilder = diskStorage.makeBuilder();
+        for (ByteBuffer buffer : buffers) {
+          buffer.flip();
+          byte[] chunk = new byte[buffer.remaining()];
+          buffer.get(chunk);
+          diskBuilder.write(chunk);
+        }
+
+        releaseAll(buffers);
+        buffers.clear();
+      }
+
+      @Override
+      protected CloseableByteSource doBuild() throws IOException {
+        if (diskBuilder != null) {
+          CloseableByteSource diskSource = diskBuilder.build();
+          pool.recordOverflow(diskSource.size());
+          checkMaxUsage();
+          return diskSource;
+        }
+
+        long size = 0;
+        for (ByteBuffer buffer : buffers) {
+          buffer.flip();
+          size += buffer.remaining();
+        }
+
+        TrackedSource source = new TrackedSource(new BufferSource(buffers, size));
+        liveSources.add(source);
+        checkMaxUsage();
+        return source;
+      }
+    };
+  }
+
+  @Override
+  public CloseableByteSource fromSource(ByteSource source) throws IOException {
+    try (InputStream stream = source.openStream()) {
+      return fromStream(stream);
+    }
+  }
+
+  /** Returns buffers to the pool. */
+  private void releaseAll(List<ByteBuffer> buffers) {
+    long released = 0;
+    for (ByteBuffer buffer : buffers) {
+      released += buffer.capacity();
+      pool.release(buffer);
+    }
+
+    updateMemoryUsage(-released);
+  }
+
+  /** Updates the number of bytes in buffers held by this storage. */
+  private synchronized void updateMemoryUsage(long delta) {
+    memoryBytesUsed += delta;
+    if (memoryBytesUsed > maxMemoryBytesUsed) {
+      maxMemoryBytesUsed = memoryBytesUsed;
+    }
+  }
+
+  /** Checks if we have reached a new high of data usage and set it. */
+  private synchronized void checkMaxUsage() {
+    if (getBytesUsed() > maxBytesUsed) {
+      maxBytesUsed = getBytesUsed();
+    }
+  }
+
+  @Override
+  public synchronized long getBytesUsed() {
+    return memoryBytesUsed + diskStorage.getBytesUsed();
+  }
+
+  @Override
+  public synchronized long getMaxBytesUsed() {
+    return maxBytesUsed;
+  }
+
+  /** Obtains the number of bytes in direct buffers held by this storage. */
+  public synchronized long getMemoryBytesUsed() {
+    return memoryBytesUsed;
+  }
+
+  /** Obtains the maximum number of bytes ever held in direct buffers by this storage. */
+  public synchronized long getMaxMemoryBytesUsed() {
+    return maxMemoryBytesUsed;
+  }
+
+  /** Obtains the number of bytes stored in disk. */
+  public long getDiskBytesUsed() {
+    return diskStorage.getBytesUsed();
+  }
+
+  /** Obtains the maximum number of bytes ever stored in disk. */
+  public long getMaxDiskBytesUsed() {
+    return diskStorage.getMaxBytesUsed();
+  }
+
+  /**
+   * Closes the storage. Sources that were not closed yet are closed now, so that their buffers
+   * go back to the pool for other storages to use.
+   */
+  @Override
+  public void close() throws IOException {
+    pool.unregister(this);
+    List<TrackedSource> sources;
+    synchronized (liveSources) {
+      sources = ImmutableList.copyOf(liveSources);
+    }
+
+    try (Closer closer = Closer.create()) {
+      for (TrackedSource source : sources) {
+        closer.register(source);
+      }
+
+      closer.register(diskStorage);
+    }
+  }
+
+  /** Source in the LRU queue of the pool that can move itself to the disk of its storage. */
+  final class TrackedSource extends LruTrackedCloseableByteSource {
+
+    /** Number of bytes in the source. */
+    private final long size;
+
+    TrackedSource(BufferSource delegate) throws IOException {
+      super(delegate, pool.getTracker());
+      size = delegate.size();
+    }
+
+    /**
+     * Moves the data to disk, returning the buffers to the pool.
+     *
+     * @return the number of bytes moved
+     */
+    long spill() throws IOException {
+      move(diskStorage);
+      return size;
+    }
+
+    @Override
+    protected synchronized void innerClose() throws IOException {
+      liveSources.remove(this);
+      super.innerClose();
+    }
+  }
+
+  /** Source reading from a list of buffers that are returned to the pool when closed. */
+  private final class BufferSource extends CloseableByteSource {
+
+    /** Buffers with the data between their position and limit. */
+    private final List<ByteBuffer> buffers;
+
+    /** Total number of bytes in the buffers. */
+    private final long size;
+
+    BufferSource(List<ByteBuffer> buffers, long size) {
+      this.buffers = ImmutableList.copyOf(buffers);
+      this.size = size;
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public Optional<Long> sizeIfKnown() {
+      return Optional.of(size);
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new InputStream() {
+        /** Index of the buffer being read. */
+        private int index;
+
+        /** View of the buffer being read, so that streams do not share positions. */
+        @Nullable private ByteBuffer current = next();
+
+        @Nullable
+        private ByteBuffer next() {
+          while (index < buffers.size()) {
+            ByteBuffer view = buffers.get(index++).asReadOnlyBuffer();
+            if (view.hasRemaining()) {
+              return view;
+            }
+          }
+
+          return null;
+        }
+
+        @Override
+        public int read() {
+          while (current != null && !current.hasRemaining()) {
+            current = next();
+          }
+
+          return current == null ? -1 : (current.get() & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+          if (len == 0) {
+            return 0;
+          }
+
+          while (current != null && !current.hasRemaining()) {
+            current = next();
+          }
+
+          if (current == null) {
+            return -1;
+          }
+
+          int count = Math.min(len, current.remaining());
+          current.get(b, off, count);
+          return count;
+        }
+
+        @Override
+        public int available() {
+          return current == null ? 0 : current.remaining();
+        }
+      };
+    }
+
+    @Override
+    protected void innerClose() {
+      releaseAll(buffers);
+    }
+  }
+}
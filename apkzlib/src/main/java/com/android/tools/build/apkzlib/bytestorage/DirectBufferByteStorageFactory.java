@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.bytestorage;
+
+import java.io.IOException;
+
+/**
+ * {@link ByteStorageFactory} that creates instances of {@link DirectBufferByteStorage} sharing one
+ * pool of direct buffers. All zip files opened with the same factory share its budget and reuse
+ * its buffers, so one factory should be used for a whole batch of zip files.
+ *
+ * <p>The factory keeps track of the storages it created until they are closed and its gauges cover
+ * all of them, so a batch can be sized from the gauges of one factory.
+ *
+ * <p>The budget only bounds the pool. The JVM limits direct memory on its own, so the budget
+ * should stay below {@code -XX:MaxDirectMemorySize}, which defaults to the maximum heap size.
+ */
+public class DirectBufferByteStorageFactory implements ByteStorageFactory {
+
+  /** Pool shared by all storages. */
+  private final DirectBufferPool pool;
+
+  /** Factory that creates temporary directories. */
+  private final TemporaryDirectoryFactory temporaryDirectoryFactory;
+
+  /**
+   * Creates a new factory.
+   *
+   * @param budgetInBytes how many bytes all storages may keep in direct buffers together
+   * @param temporaryDirectoryFactory a factory that creates temporary directories that will be used
+   *     for overflow of the {@link ByteStorage} instances created by this factory
+   */
+  public DirectBufferByteStorageFactory(
+      long budgetInBytes, TemporaryDirectoryFactory temporaryDirectoryFactory) {
+    this.pool = new DirectBufferPool(budgetInBytes);
+    this.temporaryDirectoryFactory = temporaryDirectoryFactory;
+  }
+
+  @Override
+  public ByteStorage create() throws IOException {
+    return new DirectBufferByteStorage(pool, temporaryDirectoryFactory);
+  }
+
+  /** Obtains the number of bytes in direct buffers in use by all storages. */
+  public long getMemoryBytesUsed() {
+    return pool.getUsed();
+  }
+
+  /** Obtains the maximum number of bytes ever in direct buffers in use by all storages. */
+  public long getMaxMemoryBytesUsed() {
+    return pool.getMaxUsed();
+  }
+
+  /** Obtains the number of bytes allocated in direct buffers, whether in use or kept for reuse. */
+  public long getAllocatedBytes() {
+    return pool.getAllocated();
+  }
+
+  /** Obtains the budget, in bytes, shared by all storages. */
+  public long getBudget() {
+    return pool.getBudget();
+  }
+
+  /** Obtains the number of bytes on disk of all storages not closed yet. */
+  public long getDiskBytesUsed() {
+    return pool.getDiskBytesUsed();
+  }
+
+  /** Obtains the number of storages created and not closed yet. */
+  public int getStorageCount() {
+    return pool.getStorageCount();
+  }
+
+  /**
+   * Obtains the number of sources written to disk because the budget was exhausted, either
+   * evicted from memory or written there directly.
+   */
+  public long getSpillCount() {
+    return pool.getSpillCount();
+  }
+
+  /** Obtains the number of bytes written to disk because the budget was exhausted. */
+  public long getSpillBytes() {
+    return pool.getSpillBytes();
+  }
+
+  /** Obtains the number of least recently used sources moved from memory to disk. */
+  public long getEvictionCount() {
+    return pool.getEvictionCount();
+  }
+}
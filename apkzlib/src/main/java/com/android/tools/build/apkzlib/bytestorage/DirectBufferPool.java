@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.bytestorage;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Pool of direct byte buffers shared by all {@link DirectBufferByteStorage} created by one {@link
+ * DirectBufferByteStorageFactory}.
+ *
+ * <p>Buffers come in a few power-of-two sizes so that small sources do not hold on to large
+ * buffers. Released buffers are kept and handed out again, so that storages of zip files opened
+ * one after the other reuse the same memory instead of allocating new direct buffers, whose memory
+ * is only returned when they are garbage collected.
+ *
+ * <p>The pool never holds more than its budget. When the budget is exhausted, the least recently
+ * used source of any storage sharing the pool is moved to the disk storage of its own {@link
+ * DirectBufferByteStorage}, which returns its buffers to the pool. A budget over the direct memory
+ * the JVM allows ({@code -XX:MaxDirectMemorySize}) is lowered to what could be allocated the first
+ * time an allocation fails.
+ */
+final class DirectBufferPool {
+
+  /** Size of the smallest buffer. */
+  static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+  /** Size of the largest buffer. */
+  static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+  /** Free buffers, indexed by the log2 of their size over {@link #MIN_BUFFER_SIZE}. */
+  private final ArrayDeque<ByteBuffer>[] free;
+
+  /** Maximum number of bytes allocated in buffers, in use or free, as requested. */
+  private final long budget;
+
+  /**
+   * Maximum number of bytes allocated in buffers, in use or free, which is {@link #budget} unless
+   * the JVM ran out of direct memory before.
+   */
+  private long limit;
+
+  /** Number of bytes allocated in buffers, in use or free. */
+  private long allocated;
+
+  /** Number of bytes in buffers that are in use. */
+  private long used;
+
+  /** Maximum value of {@link #used} ever. */
+  private long maxUsed;
+
+  /** Sources holding buffers of the pool, the least recently used is spilled first. */
+  private final LruTracker<LruTrackedCloseableByteSource> tracker;
+
+  /** Held while a source is spilled so that concurrent spills do not pick the same source. */
+  private final Object spillLock;
+
+  /** Storages using the pool that are not closed yet. */
+  private final Set<DirectBufferByteStorage> storages;
+
+  /** Number of sources written to disk, whether evicted or not fitting the budget at all. */
+  private long spillCount;
+
+  /** Number of bytes written to disk, whether evicted or not fitting the budget at all. */
+  private long spillBytes;
+
+  /** Number of sources evicted from the LRU queue to disk. */
+  private long evictionCount;
+
+  /**
+   * Creates a new pool.
+   *
+   * @param budget the maximum number of bytes to allocate in direct buffers
+   */
+  @SuppressWarnings("unchecked")
+  DirectBufferPool(long budget) {
+    Preconditions.checkArgument(budget >= 0, "budget < 0");
+
+    this.budget = budget;
+    limit = budget;
+    free = new ArrayDeque[Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE / MIN_BUFFER_SIZE) + 1];
+    for (int i = 0; i < free.length; i++) {
+      free[i] = new ArrayDeque<>();
+    }
+
+    tracker = new LruTracker<>();
+    spillLock = new Object();
+    storages = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+  }
+
+  /** Registers a storage using the pool, until it is unregistered when closed. */
+  void register(DirectBufferByteStorage storage) {
+    storages.add(storage);
+  }
+
+  /** Unregisters a storage registered with {@link #register(DirectBufferByteStorage)}. */
+  void unregister(DirectBufferByteStorage storage) {
+    storages.remove(storage);
+  }
+
+  /** Obtains the tracker of sources holding buffers of the pool. */
+  LruTracker<LruTrackedCloseableByteSource> getTracker() {
+    return tracker;
+  }
+
+  /**
+   * Obtains a buffer, spilling sources to disk if the budget requires it.
+   *
+   * @param size the size of the buffer, a power of two between {@link #MIN_BUFFER_SIZE} and {@link
+   *     #MAX_BUFFER_SIZE}
+   * @return a cleared buffer with the given capacity or {@code null} if the budget is exhausted and
+   *     there is nothing left to spill
+   * @throws IOException failed to spill a source to disk
+   */
+  @Nullable
+  ByteBuffer acquire(int size) throws IOException {
+    Preconditions.checkArgument(Integer.bitCount(size) == 1, "size is not a power of two");
+    Preconditions.checkArgument(size >= MIN_BUFFER_SIZE && size <= MAX_BUFFER_SIZE);
+
+    while (true) {
+      ByteBuffer buffer = tryAcquire(size);
+      if (buffer != null) {
+        return buffer;
+      }
+
+      if (!spillOldest()) {
+        return null;
+      }
+    }
+  }
+
+  /** Obtains a free or new buffer if the budget allows it, dropping free buffers if needed. */
+  @Nullable
+  private synchronized ByteBuffer tryAcquire(int size) {
+    ArrayDeque<ByteBuffer> sized = free[index(size)];
+    ByteBuffer buffer = sized.poll();
+    if (buffer == null) {
+      /*
+       * Free buffers of other sizes count against the budget, so they are dropped if that makes
+       * room for this one. Their memory is returned once they are garbage collected.
+       */
+      for (int i = free.length - 1; i >= 0 && allocated + size > limit; i--) {
+        while (!free[i].isEmpty() && allocated + size > limit) {
+          allocated -= free[i].poll().capacity();
+        }
+      }
+
+      if (allocated + size > limit) {
+        return null;
+      }
+
+      try {
+        buffer = ByteBuffer.allocateDirect(size);
+      } catch (OutOfMemoryError e) {
+        /*
+         * The JVM limits direct memory on its own. What is allocated is all there is, so the
+         * budget is exhausted and sources spill to disk from now on.
+         */
+        limit = allocated;
+        return null;
+      }
+      allocated += size;
+    }
+
+    buffer.clear();
+    used += size;
+    maxUsed = Math.max(maxUsed, used);
+    return buffer;
+  }
+
+  /** Returns a buffer obtained from {@link #acquire(int)} to the pool. */
+  synchronized void release(ByteBuffer buffer) {
+    used -= buffer.capacity();
+    free[index(buffer.capacity())].push(buffer);
+  }
+
+  /**
+   * Moves the least recently used source to disk.
+   *
+   * @return {@code false} if there was no source to move
+   */
+  private boolean spillOldest() throws IOException {
+    synchronized (spillLock) {
+      LruTrackedCloseableByteSource oldest = tracker.last();
+      if (oldest == null) {
+        return false;
+      }
+
+      long size = ((DirectBufferByteStorage.TrackedSource) oldest).spill();
+      synchronized (this) {
+        evictionCount++;
+        spillCount++;
+        spillBytes += size;
+      }
+
+      return true;
+    }
+  }
+
+  /** Records a source that was written to disk because it did not fit in the budget at all. */
+  synchronized void recordOverflow(long size) {
+    spillCount++;
+    spillBytes += size;
+  }
+
+  /** Obtains the index in {@link #free} of buffers of the given size. */
+  private static int index(int size) {
+    return Integer.numberOfTrailingZeros(size / MIN_BUFFER_SIZE);
+  }
+
+  /** Obtains the number of bytes in buffers that are in use. */
+  synchronized long getUsed() {
+    return used;
+  }
+
+  /** Obtains the maximum number of bytes ever in buffers in use. */
+  synchronized long getMaxUsed() {
+    return maxUsed;
+  }
+
+  /** Obtains the maximum number of bytes to allocate in buffers. */
+  long getBudget() {
+    return budget;
+  }
+
+  /** Obtains the number of bytes allocated in direct buffers, in use or free. */
+  synchronized long getAllocated() {
+    return allocated;
+  }
+
+  /** Obtains the number of sources written to disk. */
+  synchronized long getSpillCount() {
+    return spillCount;
+  }
+
+  /** Obtains the number of bytes written to disk. */
+  synchronized long getSpillBytes() {
+    return spillBytes;
+  }
+
+  /** Obtains the number of sources evicted from the LRU queue to disk. */
+  synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /** Obtains the number of bytes on disk of all storages that are not closed. */
+  long getDiskBytesUsed() {
+    long total = 0;
+    synchronized (storages) {
+      for (DirectBufferByteStorage storage : storages) {
+        total += storage.getDiskBytesUsed();
+      }
+    }
+
+    return total;
+  }
+
+  /** Obtains the number of storages that are not closed. */
+  int getStorageCount() {
+    return storages.size();
+  }
+}
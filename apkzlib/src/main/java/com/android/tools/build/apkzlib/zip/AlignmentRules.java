@@ -50,6 +50,21 @@ public final class AlignmentRules {
     return (String path) -> path.endsWith(suffix) ? alignment : AlignmentRule.NO_ALIGNMENT;
   }
 
+  /**
+   * A rule that defines constant alignment for all files under a certain path prefix, placing no
+   * restrictions on other files.
+   *
+   * @param prefix the prefix
+   * @param alignment the alignment for paths that start with the provided prefix
+   * @return the rule
+   */
+  public static AlignmentRule constantForPrefix(String prefix, int alignment) {
+    Preconditions.checkArgument(!prefix.isEmpty(), "prefix.isEmpty()");
+    Preconditions.checkArgument(alignment > 0, "alignment <= 0");
+
+    return (String path) -> path.startsWith(prefix) ? alignment : AlignmentRule.NO_ALIGNMENT;
+  }
+
   /**
    * A rule that applies other rules in order.
    *
@@ -25,16 +25,19 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /** Representation of the central directory of a zip archive. */
 class CentralDirectory {
@@ -171,6 +174,23 @@ class CentralDirectory {
   /** Verify log for the central directory. */
   private final VerifyLog verifyLog;
 
+  /**
+   * Central directory data from which entries not yet in {@link #entries} are read. Only
+   * non-{@code null} if the directory was created by {@link #makeIndexFromData(ByteBuffer, long,
+   * ZFile, ByteStorage)} and not all entries have been read.
+   */
+  @Nullable private ByteBuffer indexedData;
+
+  /**
+   * Index of the records in {@link #indexedData}, one per record, sorted. Each value has the hash
+   * code of the record's file name in the upper 32 bits and the offset of the record in {@link
+   * #indexedData} in the lower 32 bits. Only non-{@code null} if {@link #indexedData} is.
+   */
+  @Nullable private long[] index;
+
+  /** Storage used to create entries read from {@link #indexedData}. */
+  @Nullable private ByteStorage indexedStorage;
+
   /**
    * Creates a new, empty, central directory, for a given zip file.
    *
@@ -223,6 +243,179 @@ class CentralDirectory {
     return directory;
   }
 
+  /**
+   * Creates a central directory that reads its entries only when they are needed. Only the file
+   * name of each record is decoded to build an index from the name hash to the record; the entries
+   * are created when they are first obtained with {@link #getIndexed(String)} or {@link
+   * #getEntries()}. If there are several records with the same name, the last one is used.
+   *
+   * @param bytes the data of the central directory; the directory is read from the buffer's current
+   *     position; the buffer is kept until all entries have been read and must not be changed
+   * @param count the number of entries expected in the central directory (usually read from the
+   *     {@link Eocd}).
+   * @param file the zip file this central directory belongs to
+   * @param storage the storage used to generate sources with entry data
+   * @return the central directory
+   * @throws IOException the central directory is corrupted
+   */
+  static CentralDirectory makeIndexFromData(
+      ByteBuffer bytes, long count, ZFile file, ByteStorage storage) throws IOException {
+    Preconditions.checkNotNull(bytes, "bytes == null");
+    Preconditions.checkArgument(count >= 0, "count < 0");
+
+    CentralDirectory directory = new CentralDirectory(file);
+    ByteBuffer data = bytes.slice();
+    long[] index = new long[Ints.checkedCast(count)];
+
+    for (int i = 0; i < index.length; i++) {
+      int start = data.position();
+      try {
+        String fileName = readFileName(data);
+        index[i] = ((long) fileName.hashCode() << 32) | start;
+      } catch (IOException e) {
+        throw new IOException(
+            "Failed to index directory entry index "
+                + i
+                + " (total "
+                + "directory bytes read: "
+                + start
+                + ").",
+            e);
+      }
+    }
+
+    Arrays.sort(index);
+    directory.indexedData = data;
+    directory.index = index;
+    directory.indexedStorage = storage;
+    return directory;
+  }
+
+  /**
+   * Reads the file name of the record at the buffer's position, skipping the whole record.
+   *
+   * @param bytes the central directory's data, positioned at the beginning of a record; when
+   *     finished, the buffer's position will be at the first byte after the record
+   * @return the decoded file name
+   * @throws IOException the record is corrupt
+   */
+  private static String readFileName(ByteBuffer bytes) throws IOException {
+    int start = bytes.position();
+    F_SIGNATURE.verify(bytes);
+
+    bytes.position(start + F_GP_BIT.offset());
+    GPFlags flags = GPFlags.from(F_GP_BIT.read(bytes));
+
+    bytes.position(start + F_FILE_NAME_LENGTH.offset());
+    int fileNameLength = Ints.checkedCast(F_FILE_NAME_LENGTH.read(bytes));
+    int extraFieldLength = Ints.checkedCast(F_EXTRA_FIELD_LENGTH.read(bytes));
+    int fileCommentLength = Ints.checkedCast(F_COMMENT_LENGTH.read(bytes));
+
+    bytes.position(start + F_OFFSET.endOffset());
+    if (bytes.remaining() < fileNameLength + extraFieldLength + fileCommentLength) {
+      throw new IOException("Directory entry is truncated.");
+    }
+
+    byte[] encodedFileName = new byte[fileNameLength];
+    bytes.get(encodedFileName);
+    bytes.position(bytes.position() + extraFieldLength + fileCommentLength);
+    return EncodeUtils.decode(encodedFileName, flags);
+  }
+
+  /**
+   * Reads the entry whose record is at the given offset of {@link #indexedData} and adds it to
+   * {@link #entries}.
+   *
+   * @param offset the offset of the record
+   * @return the entry
+   * @throws IOException failed to read the entry
+   */
+  private StoredEntry readIndexedEntry(int offset) throws IOException {
+    Preconditions.checkNotNull(indexedData, "indexedData == null");
+    Preconditions.checkNotNull(indexedStorage, "indexedStorage == null");
+
+    ByteBuffer bytes = indexedData.duplicate();
+    bytes.position(offset);
+    file.openReadOnlyIfClosed();
+    return readEntry(bytes, indexedStorage);
+  }
+
+  /**
+   * Obtains the entry with the given name, reading it from the central directory data if it has not
+   * been read yet.
+   *
+   * @param name the entry name
+   * @return the entry or {@code null} if there is no entry with that name
+   * @throws IOException failed to read the entry
+   */
+  @Nullable
+  StoredEntry getIndexed(String name) throws IOException {
+    StoredEntry entry = entries.get(name);
+    if (entry != null || index == null) {
+      return entry;
+    }
+
+    long hash = name.hashCode();
+    int found = Arrays.binarySearch(index, hash << 32);
+    int first = found >= 0 ? found : -found - 1;
+    int last = first;
+    while (last < index.length && (index[last] >> 32) == hash) {
+      last++;
+    }
+
+    /*
+     * Candidates with the same hash are sorted by offset, so the last record with this name is
+     * found first.
+     */
+    for (int i = last - 1; i >= first; i--) {
+      int offset = (int) index[i];
+      ByteBuffer bytes = indexedData.duplicate();
+      bytes.position(offset);
+      if (readFileName(bytes).equals(name)) {
+        return readIndexedEntry(offset);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Reads all entries not yet read from the central directory data. Afterwards, the directory no
+   * longer needs its data.
+   *
+   * @throws IOException failed to read an entry
+   */
+  private void readAllIndexed() throws IOException {
+    if (index == null) {
+      return;
+    }
+
+    int[] offsets = new int[index.length];
+    for (int i = 0; i < index.length; i++) {
+      offsets[i] = (int) index[i];
+    }
+
+    /*
+     * Go backwards so that, as in getIndexed(), the last record with a name is the one used.
+     */
+    Arrays.sort(offsets);
+    Set<String> read = Sets.newHashSet();
+    for (int i = offsets.length - 1; i >= 0; i--) {
+      ByteBuffer bytes = indexedData.duplicate();
+      bytes.position(offsets[i]);
+      String fileName = readFileName(bytes);
+      if (!read.add(fileName)) {
+        verifyLog.log("File file contains duplicate file '" + fileName + "'.");
+      } else if (!entries.containsKey(fileName)) {
+        readIndexedEntry(offsets[i]);
+      }
+    }
+
+    indexedData = null;
+    index = null;
+    indexedStorage = null;
+  }
+
   /**
    * Creates a new central directory from the entries. This is used to build a new central directory
    * from entries in the zip file.
@@ -250,10 +443,11 @@ class CentralDirectory {
    *     entry to read; when finished, the buffer's position will be at the first byte after the
    *     entry
    * @param storage the storage used to generate sources to store entry data
+   * @return the entry read
    * @throws IOException failed to read the directory entry, either because of an I/O error, because
    *     it is corrupt or contains unsupported features
    */
-  private void readEntry(ByteBuffer bytes, ByteStorage storage) throws IOException {
+  private StoredEntry readEntry(ByteBuffer bytes, ByteStorage storage) throws IOException {
     F_SIGNATURE.verify(bytes);
     long madeBy = F_MADE_BY.read(bytes);
 
@@ -367,6 +561,7 @@ class CentralDirectory {
     }
 
     entries.put(fileName, entry);
+    return entry;
   }
 
   /**
@@ -375,6 +570,12 @@ class CentralDirectory {
    * @return all entries on a non-modifiable map
    */
   Map<String, StoredEntry> getEntries() {
+    try {
+      readAllIndexed();
+    } catch (IOException e) {
+      throw new IOExceptionWrapper(e);
+    }
+
     return ImmutableMap.copyOf(entries);
   }
 
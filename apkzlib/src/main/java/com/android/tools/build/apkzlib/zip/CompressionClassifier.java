@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip;
+
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+
+/**
+ * A compression classifier decides, before compressing, whether a file that may be compressed
+ * should be stored instead because compressing it is not expected to pay off. This avoids spending
+ * time deflating data that is already compressed, such as images or nested archives, only to find
+ * out the result is not smaller.
+ */
+public interface CompressionClassifier {
+
+  /**
+   * Checks whether a file should be stored without trying to compress it.
+   *
+   * @param path the path in the zip file
+   * @param source the file's uncompressed data
+   * @return {@code true} if the file should be stored, {@code false} if compression should be
+   *     attempted
+   * @throws IOException failed to read the data
+   */
+  boolean isIncompressible(String path, ByteSource source) throws IOException;
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+
+/** Factory for instances of {@link CompressionClassifier}. */
+public final class CompressionClassifiers {
+
+  /** Suffixes of files that are already compressed. */
+  private static final ImmutableList<String> COMPRESSED_SUFFIXES =
+      ImmutableList.of(
+          ".png", ".webp", ".jpg", ".jpeg", ".gif", ".jar", ".apk", ".zip", ".so", ".ogg", ".mp3",
+          ".mp4");
+
+  /** Number of bytes sampled by the default entropy rule. */
+  private static final int DEFAULT_SAMPLE_SIZE = 4096;
+
+  /** Entropy, in bits per byte, above which the default entropy rule stores data. */
+  private static final double DEFAULT_MAX_ENTROPY = 7.5;
+
+  private CompressionClassifiers() {}
+
+  /**
+   * A classifier that always attempts compression.
+   *
+   * @return the classifier
+   */
+  public static CompressionClassifier never() {
+    return (String path, ByteSource source) -> false;
+  }
+
+  /**
+   * A classifier that stores all files with one of the given suffixes. Suffixes are matched
+   * ignoring case.
+   *
+   * @param suffixes the suffixes
+   * @return the classifier
+   */
+  public static CompressionClassifier forSuffixes(String... suffixes) {
+    ImmutableList.Builder<String> lowerSuffixesBuilder = ImmutableList.builder();
+    for (String suffix : suffixes) {
+      Preconditions.checkArgument(!suffix.isEmpty(), "suffix.isEmpty()");
+      lowerSuffixesBuilder.add(Ascii.toLowerCase(suffix));
+    }
+    ImmutableList<String> lowerSuffixes = lowerSuffixesBuilder.build();
+
+    return (String path, ByteSource source) -> {
+      String lowerPath = Ascii.toLowerCase(path);
+      for (String suffix : lowerSuffixes) {
+        if (lowerPath.endsWith(suffix)) {
+          return true;
+        }
+      }
+
+      return false;
+    };
+  }
+
+  /**
+   * A classifier that estimates the Shannon entropy of the first bytes of a file and stores it if
+   * the entropy is too high for deflate to gain anything. Already compressed or encrypted data is
+   * close to 8 bits per byte, while text and code are usually well below 6.
+   *
+   * @param sampleSize how many bytes from the start of the file to sample
+   * @param maxEntropy entropy, in bits per byte, above which files are stored
+   * @return the classifier
+   */
+  public static CompressionClassifier forEntropy(int sampleSize, double maxEntropy) {
+    Preconditions.checkArgument(sampleSize > 0, "sampleSize <= 0");
+    Preconditions.checkArgument(maxEntropy > 0.0, "maxEntropy <= 0.0");
+    Preconditions.checkArgument(maxEntropy <= 8.0, "maxEntropy > 8.0");
+
+    return (String path, ByteSource source) -> {
+      byte[] sample = new byte[sampleSize];
+      int read;
+      try (InputStream is = source.openStream()) {
+        read = ByteStreams.read(is, sample, 0, sampleSize);
+      }
+
+      return entropy(sample, read) > maxEntropy;
+    };
+  }
+
+  /**
+   * A classifier that stores files that are already compressed according to their suffix (images,
+   * archives, native libraries and media) or whose first {@code 4096} bytes have an entropy above
+   * {@code 7.5} bits per byte.
+   *
+   * @return the classifier
+   */
+  public static CompressionClassifier alreadyCompressed() {
+    return compose(
+        forSuffixes(COMPRESSED_SUFFIXES.toArray(new String[0])),
+        forEntropy(DEFAULT_SAMPLE_SIZE, DEFAULT_MAX_ENTROPY));
+  }
+
+  /**
+   * A classifier that applies other classifiers in order.
+   *
+   * @param classifiers all classifiers to be tried; a file is stored if any classifier says so
+   * @return the composition classifier
+   */
+  public static CompressionClassifier compose(CompressionClassifier... classifiers) {
+    return (String path, ByteSource source) -> {
+      for (CompressionClassifier c : classifiers) {
+        if (c.isIncompressible(path, source)) {
+          return true;
+        }
+      }
+
+      return false;
+    };
+  }
+
+  /**
+   * Computes the Shannon entropy of some data.
+   *
+   * @param data the data
+   * @param length the number of bytes of {@code data} to consider
+   * @return the entropy, in bits per byte; {@code 0} if there is no data
+   */
+  private static double entropy(byte[] data, int length) {
+    if (length == 0) {
+      return 0.0;
+    }
+
+    int[] counts = new int[256];
+    for (int i = 0; i < length; i++) {
+      counts[data[i] & 0xff]++;
+    }
+
+    double entropy = 0.0;
+    for (int count : counts) {
+      if (count > 0) {
+        double p = count / (double) length;
+        entropy -= p * Math.log(p);
+      }
+    }
+
+    return entropy / Math.log(2);
+  }
+}
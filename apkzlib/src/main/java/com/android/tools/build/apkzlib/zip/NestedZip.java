@@ -14,7 +14,7 @@ public class NestedZip extends ZFile {
     }
 
     public NestedZip(NameCallback name, ZFile target, File src, boolean mayCompress) throws IOException {
-        super(src, new ZFileOptions(), true);
+        super(src, new ZFileOptions().setUseFileChannel(true).setLazyCentralDirectory(true), true);
         this.target = target;
         this.entry = target.add(name.getName(this), directOpen(0, directSize()), mayCompress);
     }
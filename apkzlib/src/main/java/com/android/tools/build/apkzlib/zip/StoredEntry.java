@@ -31,6 +31,7 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Comparator;
 import javax.annotation.Nullable;
 
@@ -546,32 +547,7 @@ public class StoredEntry {
     /*
      * Create a source that will return whatever is on the zip file.
      */
-    CloseableByteSource rawContents =
-        new CloseableByteSource() {
-          @Override
-          public long size() throws IOException {
-            return compressInfo.getCompressedSize();
-          }
-
-          @Override
-          public InputStream openStream() throws IOException {
-            Preconditions.checkState(!deleted, "deleted");
-
-            long dataStart = zipOffset + getLocalHeaderSize();
-            long dataEnd = dataStart + compressInfo.getCompressedSize();
-
-            file.openReadOnlyIfClosed();
-            return file.directOpen(dataStart, dataEnd);
-          }
-
-          @Override
-          protected void innerClose() throws IOException {
-            /*
-             * Nothing to do here.
-             */
-          }
-        };
-
+    CloseableByteSource rawContents = new ZipRawByteSource(zipOffset, compressInfo);
     return createSourcesFromRawContents(rawContents);
   }
 
@@ -827,6 +803,17 @@ public class StoredEntry {
     return sizeChanged;
   }
 
+  /**
+   * Sets the contents of the local extra field of an entry whose data the {@link ZFile} has moved
+   * in the file itself. Unlike {@link #setLocalExtraNoNotify(ExtraField)}, the data is not loaded
+   * into memory: the {@link ZFile} writes the local header and replaces the source.
+   *
+   * @param localExtra the contents of the local extra field
+   */
+  void setLocalExtraOfMovedEntry(ExtraField localExtra) {
+    this.localExtra = localExtra;
+  }
+
   /**
    * Obtains the verify log for the entry.
    *
@@ -835,4 +822,75 @@ public class StoredEntry {
   public VerifyLog getVerifyLog() {
     return verifyLog;
   }
+  /**
+   * Source with the raw data of an entry as it is stored in the zip file. Besides being read as a
+   * stream, the data can be copied directly from the zip file to a channel.
+   */
+  class ZipRawByteSource extends CloseableByteSource {
+
+    /** Offset into the zip file where the entry's local header is. */
+    private final long zipOffset;
+
+    /** Compression information of the entry. */
+    private final CentralDirectoryHeaderCompressInfo compressInfo;
+
+    /**
+     * Creates a new source.
+     *
+     * @param zipOffset the offset into the zip file where the entry's local header is
+     * @param compressInfo the compression information of the entry
+     */
+    ZipRawByteSource(long zipOffset, CentralDirectoryHeaderCompressInfo compressInfo) {
+      this.zipOffset = zipOffset;
+      this.compressInfo = compressInfo;
+    }
+
+    @Override
+    public long size() throws IOException {
+      return compressInfo.getCompressedSize();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+      Preconditions.checkState(!deleted, "deleted");
+
+      long dataStart = zipOffset + getLocalHeaderSize();
+      long dataEnd = dataStart + compressInfo.getCompressedSize();
+
+      file.openReadOnlyIfClosed();
+      return file.directOpen(dataStart, dataEnd);
+    }
+
+    /**
+     * Obtains the zip file the data is read from.
+     *
+     * @return the zip file
+     */
+    ZFile getZFile() {
+      return file;
+    }
+
+    /**
+     * Copies all data to a channel without reading it into memory.
+     *
+     * @param target the channel to write to
+     * @param position the position in {@code target} where data should be written
+     * @throws IOException failed to copy the data
+     */
+    void transferTo(FileChannel target, long position) throws IOException {
+      Preconditions.checkState(!deleted, "deleted");
+
+      long dataStart = zipOffset + getLocalHeaderSize();
+
+      file.openReadOnlyIfClosed();
+      file.directTransferTo(dataStart, compressInfo.getCompressedSize(), target, position);
+    }
+
+    @Override
+    protected void innerClose() throws IOException {
+      /*
+       * Nothing to do here.
+       */
+    }
+  }
 }
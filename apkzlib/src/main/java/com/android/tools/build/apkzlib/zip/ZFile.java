@@ -22,6 +22,7 @@ import com.android.tools.build.apkzlib.bytestorage.ByteStorage;
 import com.android.tools.build.apkzlib.utils.CachedFileContents;
 import com.android.tools.build.apkzlib.utils.IOExceptionFunction;
 import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
+import com.android.tools.build.apkzlib.utils.IOExceptionWrapper;
 import com.android.tools.build.apkzlib.zip.compress.Zip64NotSupportedException;
 import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
@@ -56,6 +57,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -68,6 +70,7 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 
 /**
@@ -242,6 +245,21 @@ public class ZFile implements Closeable {
    */
   @Nullable private RandomAccessFile raf;
 
+  /**
+   * Are entries read from the central directory only when needed? Only ever {@code true} in
+   * read-only mode.
+   */
+  private final boolean lazyCentralDirectory;
+
+  /** Use positional {@link FileChannel} reads and writes instead of seeking {@link #raf}? */
+  private final boolean useFileChannel;
+
+  /**
+   * The whole file mapped in memory. Only non-{@code null} if the file is open, in read-only mode
+   * and {@link #useFileChannel} is set.
+   */
+  @Nullable private MappedByteBuffer mapped;
+
   /**
    * The map containing the in-memory contents of the zip file. It keeps track of which parts of the
    * zip file are used and which are not.
@@ -289,6 +307,17 @@ public class ZFile implements Closeable {
    */
   private final List<StoredEntry> linkingEntries;
 
+  /**
+   * LSPatch: entries read from the central directory whose data lies entirely inside another
+   * entry, which is what links into a nested zip look like once written. They have no space of
+   * their own in {@link #map} and stay valid for as long as the entries containing them are not
+   * moved or removed.
+   */
+  private final Map<String, StoredEntry> containedEntries;
+
+  /** LSPatch: entries holding the data of at least one of {@link #containedEntries}. */
+  private final Set<StoredEntry> containingEntries;
+
   /** Current state of the zip file. */
   private ZipFileState state;
 
@@ -338,6 +367,27 @@ public class ZFile implements Closeable {
   /** Compressor to use. */
   private final Compressor compressor;
 
+  /** Classifier that decides which files are stored without attempting compression. */
+  private final CompressionClassifier compressionClassifier;
+
+  /** Number of uncompressed bytes stored because of {@link #compressionClassifier}. */
+  private long compressionSkippedBytes;
+
+  /** Number of bytes written to the file since it was opened. */
+  private long bytesWritten;
+
+  /**
+   * Number of entries compressed by {@link #compressor} for this file. Entries added with {@link
+   * #addCompressed} are not counted, as they were compressed before.
+   */
+  private final AtomicLong compressedEntries = new AtomicLong();
+
+  /** Number of uncompressed bytes of the entries counted in {@link #compressedEntries}. */
+  private final AtomicLong compressionInputBytes = new AtomicLong();
+
+  /** Number of bytes the entries counted in {@link #compressedEntries} were compressed to. */
+  private final AtomicLong compressionOutputBytes = new AtomicLong();
+
   /** Byte storage to use. */
   private final ByteStorage storage;
 
@@ -432,6 +482,9 @@ public class ZFile implements Closeable {
     noTimestamps = options.getNoTimestamps();
     storage = options.getStorageFactory().create();
     compressor = options.getCompressor();
+    compressionClassifier = options.getCompressionClassifier();
+    useFileChannel = options.getUseFileChannel();
+    lazyCentralDirectory = readOnly && options.getLazyCentralDirectory();
     coverEmptySpaceUsingExtraField = options.getCoverEmptySpaceUsingExtraField();
     autoSortFiles = options.getAutoSortFiles();
     verifyLogFactory = options.getVerifyLogFactory();
@@ -455,6 +508,8 @@ public class ZFile implements Closeable {
     entries = Maps.newHashMap();
     uncompressedEntries = Lists.newArrayList();
     linkingEntries = Lists.newArrayList();
+    containedEntries = Maps.newHashMap();
+    containingEntries = Sets.newIdentityHashSet();
     extraDirectoryOffset = 0;
 
     try {
@@ -563,6 +618,59 @@ public class ZFile implements Closeable {
     return skipValidation;
   }
 
+  /**
+   * Obtains the number of bytes added to this file that were stored without attempting compression
+   * because the {@link ZFileOptions#getCompressionClassifier() compression classifier} deemed them
+   * incompressible.
+   *
+   * @return the number of uncompressed bytes whose compression was skipped
+   */
+  public long getCompressionSkippedBytes() {
+    return compressionSkippedBytes;
+  }
+
+  /**
+   * Obtains the number of bytes written to the file since it was opened, counting entry data,
+   * headers, the central directory and data moved within the file. Bytes written more than once
+   * are counted each time.
+   *
+   * @return the number of bytes written
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Obtains the number of entries whose compression ran for this file, whatever method it chose.
+   * Data added with {@link #addCompressed} is not counted. An entry is counted once its compression
+   * info is available.
+   *
+   * @return the number of entries compressed
+   */
+  public long getCompressedEntries() {
+    return compressedEntries.get();
+  }
+
+  /**
+   * Obtains the number of uncompressed bytes of the entries counted by {@link
+   * #getCompressedEntries()}.
+   *
+   * @return the number of bytes compressed
+   */
+  public long getCompressionInputBytes() {
+    return compressionInputBytes.get();
+  }
+
+  /**
+   * Obtains the number of bytes the entries counted by {@link #getCompressedEntries()} were
+   * compressed to.
+   *
+   * @return the number of bytes compressed data takes
+   */
+  public long getCompressionOutputBytes() {
+    return compressionOutputBytes.get();
+  }
+
   /**
    * Obtains all entries in the file. Entries themselves may be or not written in disk. However, all
    * of them can be open for reading.
@@ -572,6 +680,11 @@ public class ZFile implements Closeable {
   public Set<StoredEntry> entries() {
     Map<String, StoredEntry> entries = Maps.newHashMap();
 
+    CentralDirectory directory = lazyDirectory();
+    if (directory != null) {
+      entries.putAll(directory.getEntries());
+    }
+
     for (FileUseMapEntry<StoredEntry> mapEntry : this.entries.values()) {
       StoredEntry entry = mapEntry.getStore();
       Preconditions.checkNotNull(entry, "Entry at %s is null", mapEntry.getStart());
@@ -590,6 +703,10 @@ public class ZFile implements Closeable {
       entries.put(linking.getCentralDirectoryHeader().getName(), linking);
     }
 
+    for (StoredEntry contained : containedEntries.values()) {
+      entries.putIfAbsent(contained.getCentralDirectoryHeader().getName(), contained);
+    }
+
     return Sets.newHashSet(entries.values());
   }
 
@@ -613,12 +730,35 @@ public class ZFile implements Closeable {
 
     FileUseMapEntry<StoredEntry> found = entries.get(path);
     if (found == null) {
-      return null;
+      CentralDirectory directory = lazyDirectory();
+      if (directory == null) {
+        return containedEntries.get(path);
+      }
+
+      try {
+        return directory.getIndexed(path);
+      } catch (IOException e) {
+        throw new IOExceptionWrapper(e);
+      }
     }
 
     return found.getStore();
   }
 
+  /**
+   * Obtains the central directory entries are read from, if they are read only when needed.
+   *
+   * @return the directory or {@code null} if all entries have been read when the file was opened
+   */
+  @Nullable
+  private CentralDirectory lazyDirectory() {
+    if (!lazyCentralDirectory || directoryEntry == null) {
+      return null;
+    }
+
+    return directoryEntry.getStore();
+  }
+
   /**
    * Reads all the data in the zip file, except the contents of the entries themselves. This method
    * will populate the directory and maps in the instance variables.
@@ -632,6 +772,14 @@ public class ZFile implements Closeable {
     readEocd();
     readCentralDirectory();
 
+    if (lazyCentralDirectory) {
+      /*
+       * Entries are only read when needed. The file is never written so there is no need to
+       * know which parts of it are in use.
+       */
+      return;
+    }
+
     /*
      * Go over all files and create the usage map, verifying there is no overlap in the files.
      */
@@ -644,7 +792,18 @@ public class ZFile implements Closeable {
 
       entryEndOffset = 0;
 
-      for (StoredEntry entry : directory.getEntries().values()) {
+      /*
+       * Entries are visited by offset so that an entry contained in another one is always
+       * visited after the one containing it.
+       */
+      List<StoredEntry> byOffset = new ArrayList<>(directory.getEntries().values());
+      byOffset.sort(
+          (a, b) ->
+              Long.compare(
+                  a.getCentralDirectoryHeader().getOffset(),
+                  b.getCentralDirectoryHeader().getOffset()));
+
+      for (StoredEntry entry : byOffset) {
         long start = entry.getCentralDirectoryHeader().getOffset();
         long end = start + entry.getInFileSize();
 
@@ -667,6 +826,18 @@ public class ZFile implements Closeable {
         FileUseMapEntry<?> found = map.at(start);
         Verify.verifyNotNull(found);
 
+        /*
+         * LSPatch: an entry lying entirely inside another entry is a link into a nested zip. It
+         * does not use any space of its own.
+         */
+        if (!found.isFree()
+            && found.getStore() instanceof StoredEntry
+            && end <= found.getEnd()) {
+          containedEntries.put(entry.getCentralDirectoryHeader().getName(), entry);
+          containingEntries.add((StoredEntry) found.getStore());
+          continue;
+        }
+
         // We've got a problem if the found entry is not free or is a free entry but
         // doesn't cover the whole file.
         if (!found.isFree() || found.getEnd() < end) {
@@ -887,12 +1058,23 @@ public class ZFile implements Closeable {
       }
     }
 
-    byte[] directoryData = new byte[Ints.checkedCast(dirSize)];
-    directFullyRead(eocd.getDirectoryOffset(), directoryData);
+    ByteBuffer directoryData;
+    if (mapped != null) {
+      directoryData = mappedSlice(eocd.getDirectoryOffset(), Ints.checkedCast(dirSize));
+    } else {
+      directoryData = ByteBuffer.allocate(Ints.checkedCast(dirSize));
+      directFullyRead(eocd.getDirectoryOffset(), directoryData);
+      directoryData.flip();
+    }
 
-    CentralDirectory directory =
-        CentralDirectory.makeFromData(
-            ByteBuffer.wrap(directoryData), eocd.getTotalRecords(), this, storage);
+    CentralDirectory directory;
+    if (lazyCentralDirectory) {
+      directory =
+          CentralDirectory.makeIndexFromData(directoryData, eocd.getTotalRecords(), this, storage);
+    } else {
+      directory =
+          CentralDirectory.makeFromData(directoryData, eocd.getTotalRecords(), this, storage);
+    }
     if (eocd.getDirectorySize() > 0) {
       directoryEntry =
           map.add(
@@ -983,6 +1165,16 @@ public class ZFile implements Closeable {
     checkNotInReadOnlyMode();
 
     String path = entry.getCentralDirectoryHeader().getName();
+    if (containedEntries.get(path) == entry) {
+      containedEntries.remove(path);
+      dirty = true;
+      if (notify) {
+        notify(ext -> ext.removed(entry));
+      }
+      return;
+    }
+
+    checkNotContaining(entry);
     FileUseMapEntry<StoredEntry> mapEntry = entries.get(path);
     Preconditions.checkNotNull(mapEntry, "mapEntry == null");
     Preconditions.checkArgument(entry == mapEntry.getStore(), "entry != mapEntry.getStore()");
@@ -997,6 +1189,20 @@ public class ZFile implements Closeable {
     }
   }
 
+  /**
+   * Checks that no entry read from the file lies inside the given entry, as those entries would be
+   * left pointing to data that is no longer there if it moved.
+   *
+   * @param entry the entry about to be moved or removed
+   * @throws IllegalStateException if other entries are contained in {@code entry}
+   */
+  private void checkNotContaining(StoredEntry entry) {
+    Preconditions.checkState(
+        !containingEntries.contains(entry),
+        "'%s' holds the data of other entries and cannot be moved or removed",
+        entry.getCentralDirectoryHeader().getName());
+  }
+
   /**
    * Checks that the file is not in read-only mode.
    *
@@ -1287,7 +1493,7 @@ public class ZFile implements Closeable {
       Preconditions.checkNotNull(storedEntry, "Entry at %s is null", entry.getStart());
 
       FileUseMapEntry<?> before = map.before(entry);
-      if (before == null || !before.isFree()) {
+      if (before == null || !before.isFree() || containingEntries.contains(storedEntry)) {
         continue;
       }
 
@@ -1316,6 +1522,7 @@ public class ZFile implements Closeable {
     FileUseMapEntry<StoredEntry> mapEntry = entries.get(name);
     Preconditions.checkNotNull(mapEntry);
     Preconditions.checkState(mapEntry.getStore() == entry);
+    checkNotContaining(entry);
 
     entry.loadSourceIntoMemory();
 
@@ -1417,8 +1624,23 @@ public class ZFile implements Closeable {
     }
     int readOffset = entry.toHeaderData(chunk);
     assert localHeaderSize == readOffset;
+
+    ByteSource rawSource = entry.getSource().getRawByteSource();
+    if (useFileChannel
+        && rawSource instanceof StoredEntry.ZipRawByteSource
+        && ((StoredEntry.ZipRawByteSource) rawSource).getZFile() != this) {
+      /*
+       * The data comes from another zip file, copy it from file to file.
+       */
+      directWrite(offset, chunk, 0, readOffset);
+      ((StoredEntry.ZipRawByteSource) rawSource).transferTo(raf.getChannel(), offset + readOffset);
+      bytesWritten += entry.getCentralDirectoryHeader().getCompressionInfoWithWait().getCompressedSize();
+      entry.replaceSourceFromZip(offset);
+      return;
+    }
+
     long writeOffset = offset;
-    try (InputStream is = entry.getSource().getRawByteSource().openStream()) {
+    try (InputStream is = rawSource.openStream()) {
       while ((r = is.read(chunk, readOffset, chunk.length - readOffset)) >= 0 || readOffset > 0) {
         int toWrite = (r == -1 ? 0 : r) + readOffset;
         directWrite(writeOffset, chunk, 0, toWrite);
@@ -1452,6 +1674,7 @@ public class ZFile implements Closeable {
     }
 
     newStored.addAll(linkingEntries);
+    newStored.addAll(containedEntries.values());
 
     /*
      * Make sure we truncate the map before computing the central directory's location since
@@ -1547,7 +1770,9 @@ public class ZFile implements Closeable {
 
       dirStart = directoryEntry.getStart();
       dirSize = directoryEntry.getSize();
-      Verify.verify(directory.getEntries().size() == entries.size() + linkingEntries.size());
+      Verify.verify(
+          directory.getEntries().size()
+              == entries.size() + linkingEntries.size() + containedEntries.size());
     } else {
       /*
        * If we do not have a directory, then we must leave any requested offset empty.
@@ -1556,7 +1781,12 @@ public class ZFile implements Closeable {
     }
 
     Verify.verify(eocdComment != null);
-    Eocd eocd = new Eocd(entries.size() + linkingEntries.size(), dirStart, dirSize, eocdComment);
+    Eocd eocd =
+        new Eocd(
+            entries.size() + linkingEntries.size() + containedEntries.size(),
+            dirStart,
+            dirSize,
+            eocdComment);
     eocdComment = null;
 
     byte[] eocdBytes = eocd.toBytes();
@@ -1617,6 +1847,7 @@ public class ZFile implements Closeable {
 
     raf.close();
     raf = null;
+    mapped = null;
     state = ZipFileState.CLOSED;
     if (closedControl == null) {
       closedControl = new CachedFileContents<>(file);
@@ -1640,6 +1871,14 @@ public class ZFile implements Closeable {
 
     state = ZipFileState.OPEN_RO;
     raf = new RandomAccessFile(file, "r");
+
+    /*
+     * A read-only file will never be written to by us, so map it whole and serve reads without
+     * going through the file.
+     */
+    if (useFileChannel && readOnly && raf.length() <= Integer.MAX_VALUE) {
+      mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
   }
 
   /**
@@ -1772,11 +2011,174 @@ public class ZFile implements Closeable {
       addNestedLink(linkedEntry, dstName, null, 0L, false);
   }
 
+  /**
+   * Adds a copy of an entry from another zip file, keeping its data exactly as it is stored there.
+   * The raw (possibly compressed) data is neither inflated nor deflated and the CRC and sizes are
+   * taken from the source entry, so the copy costs little more than moving the bytes.
+   *
+   * <p>The data is not read until it is written to this file, so the zip containing {@code
+   * fromEntry} must not be modified before this file is updated (it may be closed, though).
+   *
+   * <p>Adding the entry will not update the archive immediately. Updating will only happen when
+   * the {@link #update()} method is invoked.
+   *
+   * @param fromEntry the entry to copy
+   * @param dstName the name of the copy in this file
+   * @return the new entry
+   * @throws IOException failed to obtain the source entry's data
+   * @throws IllegalStateException if the file is in read-only mode
+   */
+  public StoredEntry addRawCopy(StoredEntry fromEntry, String dstName) throws IOException {
+    checkNotInReadOnlyMode();
+    Preconditions.checkArgument(!fromEntry.isLinkingEntry(), "fromEntry is a linking entry");
+
+    processAllReadyEntries();
+
+    CentralDirectoryHeader fromCdh = fromEntry.getCentralDirectoryHeader();
+    CentralDirectoryHeaderCompressInfo fromCompressInfo = fromCdh.getCompressionInfoWithWait();
+    ByteSource fromRaw = fromEntry.getSource().getRawByteSource();
+
+    boolean encodeWithUtf8 = !EncodeUtils.canAsciiEncode(dstName);
+    GPFlags flags = GPFlags.make(encodeWithUtf8);
+    SettableFuture<CentralDirectoryHeaderCompressInfo> compressInfo = SettableFuture.create();
+    CentralDirectoryHeader newFileData =
+        new CentralDirectoryHeader(
+            dstName,
+            EncodeUtils.encode(dstName, flags),
+            fromCdh.getUncompressedSize(),
+            compressInfo,
+            flags,
+            this,
+            fromCdh.getLastModTime(),
+            fromCdh.getLastModDate());
+    newFileData.setCrc32(fromCdh.getCrc32());
+    compressInfo.set(
+        new CentralDirectoryHeaderCompressInfo(
+            newFileData, fromCompressInfo.getMethod(), fromCompressInfo.getCompressedSize()));
+
+    /*
+     * The raw contents read straight from the source entry. Closing them must not close the
+     * source entry's data, which is still owned by the other file. Data read from the source zip
+     * can be used as is, because closing it does nothing, and can later be copied from file to
+     * file.
+     */
+    CloseableByteSource rawContents;
+    if (fromRaw instanceof StoredEntry.ZipRawByteSource) {
+      rawContents = (StoredEntry.ZipRawByteSource) fromRaw;
+    } else {
+      rawContents = sharedSource(fromRaw, fromCompressInfo.getCompressedSize());
+    }
+
+    Verify.verify(newFileData.getOffset() == -1);
+    return add(
+        new StoredEntry(
+            newFileData,
+            this,
+            rawSources(fromCompressInfo.getMethod(), rawContents),
+            storage));
+  }
+
+  /**
+   * Adds a file whose data has already been compressed, so that data compressed once can be added
+   * to many zip files without compressing it again. Nothing is verified: {@code compressed} must
+   * hold the data compressed with its compression method, and {@code uncompressedSize} and {@code
+   * crc32} must describe the data before compression.
+   *
+   * <p>The compressed data is never closed by this file, so it can be shared by several files.
+   *
+   * <p>Adding the entry will not update the archive immediately. Updating will only happen when
+   * the {@link #update()} method is invoked.
+   *
+   * @param name the name of the file
+   * @param compressed the compressed data
+   * @param uncompressedSize the size of the data before compression
+   * @param crc32 the CRC32 of the data before compression
+   * @return the new entry
+   * @throws IOException failed to add the file
+   * @throws IllegalStateException if the file is in read-only mode
+   */
+  public StoredEntry addCompressed(
+      String name, CompressionResult compressed, long uncompressedSize, long crc32)
+      throws IOException {
+    checkNotInReadOnlyMode();
+
+    processAllReadyEntries();
+
+    boolean encodeWithUtf8 = !EncodeUtils.canAsciiEncode(name);
+    GPFlags flags = GPFlags.make(encodeWithUtf8);
+    SettableFuture<CentralDirectoryHeaderCompressInfo> compressInfo = SettableFuture.create();
+    CentralDirectoryHeader newFileData =
+        new CentralDirectoryHeader(
+            name, EncodeUtils.encode(name, flags), uncompressedSize, compressInfo, flags, this);
+    newFileData.setCrc32(crc32);
+    compressInfo.set(
+        new CentralDirectoryHeaderCompressInfo(
+            newFileData, compressed.getCompressionMethod(), compressed.getSize()));
+
+    CloseableByteSource rawContents = sharedSource(compressed.getSource(), compressed.getSize());
+
+    Verify.verify(newFileData.getOffset() == -1);
+    return add(
+        new StoredEntry(
+            newFileData,
+            this,
+            rawSources(compressed.getCompressionMethod(), rawContents),
+            storage));
+  }
+
+  /**
+   * Wraps data owned by someone else so that closing it, as done when the entry using it is
+   * removed or the file is closed, does not close the data.
+   *
+   * @param source the data
+   * @param size the size of the data
+   * @return a source reading {@code source} that does nothing when closed
+   */
+  private static CloseableByteSource sharedSource(ByteSource source, long size) {
+    return new CloseableByteSource() {
+      @Override
+      public long size() throws IOException {
+        return size;
+      }
+
+      @Override
+      public InputStream openStream() throws IOException {
+        return source.openStream();
+      }
+
+      @Override
+      protected void innerClose() {}
+    };
+  }
+
+  /**
+   * Creates the sources of an entry whose data is already stored as it will be written.
+   *
+   * @param method the compression method of the raw data
+   * @param rawContents the raw data
+   * @return the sources, inflating the raw data when the processed data is read if needed
+   */
+  private static ProcessedAndRawByteSources rawSources(
+      CompressionMethod method, CloseableByteSource rawContents) {
+    CloseableByteSource processedContents;
+    if (method == CompressionMethod.DEFLATE) {
+      processedContents = new InflaterByteSource(rawContents);
+    } else {
+      processedContents = rawContents;
+    }
+
+    return new ProcessedAndRawByteSources(processedContents, rawContents);
+  }
+
   void addNestedLink(StoredEntry linkedEntry, String dstName, StoredEntry nestedEntry, long nestedOffset, boolean dummy)
           throws IOException {
     Preconditions.checkArgument(linkedEntry != null, "linkedEntry is null");
     Preconditions.checkArgument(linkedEntry.getCentralDirectoryHeader().getOffset() < 0, "linkedEntry is not new file");
     Preconditions.checkArgument(!linkedEntry.isLinkingEntry(), "linkedEntry is a linking entry");
+    if (uncompressedEntries.contains(linkedEntry)) {
+      // linkedEntry may still be waiting behind entries compressing in the background
+      processAllReadyEntriesWithWait();
+    }
     var linkingEntry = new StoredEntry(dstName, this, storage, linkedEntry, nestedEntry, nestedOffset, dummy);
     linkingEntries.add(linkingEntry);
     linkedEntry.setLocalExtraNoNotify(new ExtraField(ImmutableList.<ExtraField.Segment>builder().add(linkedEntry.getLocalExtra().getSegments().toArray(new ExtraField.Segment[0])).add(new ExtraField.LinkingEntrySegment(linkingEntry)).build()));
@@ -1858,13 +2260,23 @@ public class ZFile implements Closeable {
       SettableFuture<CentralDirectoryHeaderCompressInfo> compressInfo,
       CentralDirectoryHeader newFileData)
       throws IOException {
+    if (mayCompress && compressionClassifier.isIncompressible(newFileData.getName(), source)) {
+      mayCompress = false;
+      compressionSkippedBytes += source.size();
+    }
+
     if (mayCompress) {
+      long size = source.size();
       ListenableFuture<CompressionResult> result = compressor.compress(source, storage);
       Futures.addCallback(
           result,
           new FutureCallback<CompressionResult>() {
             @Override
             public void onSuccess(CompressionResult result) {
+              // Counted before the info is set, so that whoever waits for it sees the counts.
+              compressedEntries.incrementAndGet();
+              compressionInputBytes.addAndGet(size);
+              compressionOutputBytes.addAndGet(result.getSize());
               compressInfo.set(
                   new CentralDirectoryHeaderCompressInfo(
                       newFileData, result.getCompressionMethod(), result.getSize()));
@@ -1984,7 +2396,10 @@ public class ZFile implements Closeable {
           replaceStore, "File to replace at %s is null", toReplace.getStart());
       replaceStore.delete(false);
     } else {
-      replaceStore = null;
+      replaceStore = containedEntries.get(newEntry.getCentralDirectoryHeader().getName());
+      if (replaceStore != null) {
+        replaceStore.delete(false);
+      }
     }
 
     FileUseMapEntry<StoredEntry> fileUseMapEntry = positionInFile(newEntry, PositionHint.ANYWHERE);
@@ -2122,19 +2537,6 @@ public class ZFile implements Closeable {
          * Read the data (read directly the compressed source if there is one).
          */
         ProcessedAndRawByteSources fromSource = fromEntry.getSource();
-        InputStream fromInput = fromSource.getRawByteSource().openStream();
-        long sourceSize = fromSource.getRawByteSource().size();
-        if (sourceSize > Integer.MAX_VALUE) {
-          throw new IOException("Cannot read source with " + sourceSize + " bytes.");
-        }
-
-        byte[] data = new byte[Ints.checkedCast(sourceSize)];
-        int read = 0;
-        while (read < data.length) {
-          int r = fromInput.read(data, read, data.length - read);
-          Verify.verify(r >= 0, "There should be at least 'size' bytes in the stream.");
-          read += r;
-        }
 
         /*
          * Build the new source and wrap it around an inflater source if data came from
@@ -2189,6 +2591,11 @@ public class ZFile implements Closeable {
    * Realigns all entries in the zip. This is equivalent to call {@link StoredEntry#realign()} for
    * all entries in the zip file.
    *
+   * <p>Entries already written in the file are realigned in place: a new layout is planned for all
+   * of them first and their data is then moved within the file, as it is stored, without going
+   * through the byte storage or being inflated. Only entries that cannot be moved that way are
+   * realigned one by one (see {@link #realignInPlace()}).
+   *
    * @return has any entry been changed? Note that for entries that have not yet been written on the
    *     file, realignment does not count as a change as nothing needs to be updated in the file;
    *     entries that have been updated may have been recreated and the existing references outside
@@ -2200,7 +2607,10 @@ public class ZFile implements Closeable {
   public boolean realign() throws IOException {
     checkNotInReadOnlyMode();
 
-    boolean anyChanges = false;
+    /*
+     * Entries moved in place are aligned afterwards, so realigning them is a no-op.
+     */
+    boolean anyChanges = realignInPlace();
     for (StoredEntry entry : entries()) {
       anyChanges |= entry.realign();
     }
@@ -2212,6 +2622,371 @@ public class ZFile implements Closeable {
     return anyChanges;
   }
 
+  /**
+   * Realigns all entries written in the zip file that can be moved in place. The new position of
+   * every entry is planned before anything is moved: entries keep their order and their data only
+   * ever moves towards the end of the file, each by as little as needed to align it and make room
+   * for the ones before it, so free space between entries absorbs the shifts. Entries that cannot
+   * be moved, such as entries not yet written or nested zips, stay where they are.
+   * Movable entries that no longer fit before one of those are moved after all other entries.
+   *
+   * <p>A moved entry starts right where the entry before it ends and the space up to its aligned
+   * data is padded with an alignment segment in its local extra field, so that no free space is
+   * left before it for {@link #update()} to cover by rewriting the entry. An entry that stays is
+   * moved anyway if the free space left before it became too small to be covered.
+   *
+   * <p>Data is then copied, data descriptor included, with positional reads and writes on the file
+   * channel and the new local header is written in front of it. Entries are copied from the last
+   * one to the first one, and each from its end to its start, so nothing is overwritten before it
+   * has been copied.
+   *
+   * @return has any entry been moved?
+   * @throws IOException failed to move an entry; the zip file may be corrupted
+   */
+  private boolean realignInPlace() throws IOException {
+    SortedSet<FileUseMapEntry<StoredEntry>> byStart =
+        new TreeSet<>(FileUseMapEntry.COMPARE_BY_START);
+    byStart.addAll(entries.values());
+    if (byStart.isEmpty()) {
+      return false;
+    }
+
+    int minFreeSize = coverEmptySpaceUsingExtraField ? MINIMUM_EXTRA_FIELD_SIZE : 0;
+    List<RealignMove> moves = new ArrayList<>();
+    List<FileUseMapEntry<StoredEntry>> movable = new ArrayList<>();
+    List<FileUseMapEntry<StoredEntry>> deferred = new ArrayList<>();
+    long position = byStart.first().getStart();
+    for (FileUseMapEntry<StoredEntry> mapEntry : byStart) {
+      if (isMovableInPlace(mapEntry)) {
+        movable.add(mapEntry);
+        continue;
+      }
+
+      position =
+          planRealign(movable, position, mapEntry.getStart(), minFreeSize, moves, deferred);
+      position = Math.max(position, mapEntry.getEnd());
+      movable.clear();
+    }
+
+    position = planRealign(movable, position, Long.MAX_VALUE, minFreeSize, moves, deferred);
+    for (FileUseMapEntry<StoredEntry> mapEntry : deferred) {
+      RealignMove move = placeAt(mapEntry, position, minFreeSize);
+      moves.add(move);
+      position = move.newEnd;
+    }
+
+    if (moves.isEmpty()) {
+      return false;
+    }
+
+    /*
+     * The central directory and EOCD are rewritten when updating, their space may be used by the
+     * entries moved towards the end.
+     */
+    deleteDirectoryAndEocd();
+    reopenRw();
+    Preconditions.checkNotNull(raf, "raf == null");
+
+    moves.sort((m0, m1) -> Long.compare(m1.mapEntry.getStart(), m0.mapEntry.getStart()));
+    ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+    for (RealignMove move : moves) {
+      StoredEntry entry = move.mapEntry.getStore();
+      Preconditions.checkNotNull(entry, "Entry at %s is null", move.mapEntry.getStart());
+
+      long dataStart = move.mapEntry.getStart() + entry.getLocalHeaderSize();
+      if (move.newDataStart != dataStart) {
+        directMove(dataStart, move.newDataStart, move.mapEntry.getEnd() - dataStart, buffer);
+      }
+
+      /*
+       * The local header goes after the data of the entries before, which have not been moved
+       * yet, as they only ever end further in the file.
+       */
+      entry.setLocalExtraOfMovedEntry(move.localExtra);
+      byte[] header = new byte[entry.getLocalHeaderSize()];
+      entry.toHeaderData(header);
+      directWrite(move.newStart, header);
+    }
+
+    for (RealignMove move : moves) {
+      map.remove(move.mapEntry);
+    }
+
+    if (position > map.size()) {
+      map.extend(position);
+    }
+
+    for (RealignMove move : moves) {
+      StoredEntry entry = move.mapEntry.getStore();
+      entries.put(
+          entry.getCentralDirectoryHeader().getName(),
+          map.add(move.newStart, move.newEnd, entry));
+      entry.replaceSourceFromZip(move.newStart);
+    }
+
+    dirty = true;
+    return true;
+  }
+
+  /**
+   * Plans the new positions of consecutive movable entries, see {@link #realignInPlace()}.
+   *
+   * @param movable the entries, in the order they are in the file
+   * @param start the first position the entries can be moved to
+   * @param limit the position the entries must end before, the start of the next entry that cannot
+   *     be moved
+   * @param minFreeSize the minimum size of free space left between entries
+   * @param moves receives the entries whose position changes
+   * @param deferred receives the entries that no longer fit before {@code limit}
+   * @return the end of the last entry that fits before {@code limit}
+   * @throws IOException failed to determine the alignment of an entry
+   */
+  private long planRealign(
+      List<FileUseMapEntry<StoredEntry>> movable,
+      long start,
+      long limit,
+      int minFreeSize,
+      List<RealignMove> moves,
+      List<FileUseMapEntry<StoredEntry>> deferred)
+      throws IOException {
+    long position = start;
+    for (int i = 0; i < movable.size(); i++) {
+      FileUseMapEntry<StoredEntry> mapEntry = movable.get(i);
+      long freeSize = mapEntry.getStart() - position;
+      if (freeSize >= 0 && (freeSize == 0 || freeSize >= minFreeSize) && isAligned(mapEntry)) {
+        position = mapEntry.getEnd();
+        continue;
+      }
+
+      RealignMove move = placeAt(mapEntry, position, minFreeSize);
+      long spaceLeft = limit - move.newEnd;
+      if (spaceLeft < 0 || (spaceLeft > 0 && spaceLeft < minFreeSize)) {
+        /*
+         * The entries after this one cannot take its space either: they would overwrite its
+         * data before it is moved.
+         */
+        deferred.addAll(movable.subList(i, movable.size()));
+        return position;
+      }
+
+      moves.add(move);
+      position = move.newEnd;
+    }
+
+    return position;
+  }
+
+  /**
+   * Plans the move of an entry to start right at a position, with the space up to its aligned data
+   * padded in the local extra field. Its data never moves towards the start of the file. If the
+   * padding does not fit in the local extra field, the entry keeps its local extra field and starts
+   * further away instead.
+   *
+   * @param mapEntry the entry
+   * @param position the end of the entry before, where this one should start
+   * @param minFreeSize the minimum size of free space left before the entry
+   * @return the move
+   * @throws IOException failed to determine the alignment of the entry
+   */
+  private RealignMove placeAt(FileUseMapEntry<StoredEntry> mapEntry, long position, int minFreeSize)
+      throws IOException {
+    StoredEntry entry = mapEntry.getStore();
+    Preconditions.checkNotNull(entry, "Entry at %s is null", mapEntry.getStart());
+
+    int alignment = chooseAlignment(entry);
+    ExtraField localExtra = entry.getLocalExtra();
+    long dataStart = mapEntry.getStart() + entry.getLocalHeaderSize();
+    long dataSize = mapEntry.getEnd() - dataStart;
+
+    List<ExtraField.Segment> segments = new ArrayList<>();
+    int segmentsSize = 0;
+    for (ExtraField.Segment segment : localExtra.getSegments()) {
+      if (segment.getHeaderId() != ExtraField.ALIGNMENT_ZIP_EXTRA_DATA_FIELD_HEADER_ID) {
+        segments.add(segment);
+        segmentsSize += segment.size();
+      }
+    }
+
+    long headerSize = entry.getLocalHeaderSize() - localExtra.size() + segmentsSize;
+    long newDataStart = Math.max(dataStart, position + headerSize);
+    newDataStart += (alignment - newDataStart % alignment) % alignment;
+    long padding = newDataStart - position - headerSize;
+    while (padding > 0 && padding < MINIMUM_EXTRA_FIELD_SIZE) {
+      newDataStart += alignment;
+      padding += alignment;
+    }
+
+    if (segmentsSize + padding <= MAX_LOCAL_EXTRA_FIELD_CONTENTS_SIZE) {
+      if (padding > 0) {
+        segments.add(new ExtraField.AlignmentSegment(alignment, Ints.checkedCast(padding)));
+      }
+
+      return new RealignMove(
+          mapEntry,
+          position,
+          newDataStart,
+          newDataStart + dataSize,
+          new ExtraField(ImmutableList.copyOf(segments)));
+    }
+
+    long newStart =
+        alignedStart(mapEntry, Math.max(position, mapEntry.getStart()), position, minFreeSize);
+    newDataStart = newStart + entry.getLocalHeaderSize();
+    return new RealignMove(mapEntry, newStart, newDataStart, newDataStart + dataSize, localExtra);
+  }
+
+  /**
+   * Checks whether the data of an entry is aligned where it is.
+   *
+   * @param mapEntry the entry
+   * @return is the entry aligned?
+   * @throws IOException failed to determine the alignment of the entry
+   */
+  private boolean isAligned(FileUseMapEntry<StoredEntry> mapEntry) throws IOException {
+    StoredEntry entry = mapEntry.getStore();
+    Preconditions.checkNotNull(entry, "Entry at %s is null", mapEntry.getStart());
+    return (mapEntry.getStart() + entry.getLocalHeaderSize()) % chooseAlignment(entry) == 0;
+  }
+
+  /**
+   * Computes the first position where an entry's data would be aligned with its current local
+   * header.
+   *
+   * @param mapEntry the entry
+   * @param from the first position the entry can start at
+   * @param previousEnd the end of the entry before, free space left after it must not be smaller
+   *     than {@code minFreeSize}
+   * @param minFreeSize the minimum size of free space left between entries
+   * @return the position where the entry should start
+   * @throws IOException failed to determine the alignment of the entry
+   */
+  private long alignedStart(
+      FileUseMapEntry<StoredEntry> mapEntry, long from, long previousEnd, int minFreeSize)
+      throws IOException {
+    StoredEntry entry = mapEntry.getStore();
+    Preconditions.checkNotNull(entry, "Entry at %s is null", mapEntry.getStart());
+
+    long alignment = chooseAlignment(entry);
+    long localHeaderSize = entry.getLocalHeaderSize();
+    long start = from + (alignment - ((from + localHeaderSize) % alignment)) % alignment;
+    long freeSize = start - previousEnd;
+    if (start != mapEntry.getStart() && freeSize > 0 && freeSize < minFreeSize) {
+      start += (minFreeSize - freeSize + alignment - 1) / alignment * alignment;
+    }
+
+    return start;
+  }
+
+  /**
+   * Checks whether an entry can be moved in the file by copying its bytes as they are, data
+   * descriptor included. That is the case if the entry is written where the map says it is and
+   * nothing else refers to its position.
+   *
+   * @param mapEntry the entry
+   * @return can the entry be moved?
+   */
+  private boolean isMovableInPlace(FileUseMapEntry<StoredEntry> mapEntry) {
+    StoredEntry entry = mapEntry.getStore();
+    Preconditions.checkNotNull(entry, "Entry at %s is null", mapEntry.getStart());
+
+    ByteSource rawSource = entry.getSource().getRawByteSource();
+    if (entry.getCentralDirectoryHeader().getOffset() != mapEntry.getStart()
+        || !(rawSource instanceof StoredEntry.ZipRawByteSource)
+        || ((StoredEntry.ZipRawByteSource) rawSource).getZFile() != this
+        || containingEntries.contains(entry)) {
+      return false;
+    }
+
+    /*
+     * LSPatch: the local headers of linking entries are kept in the extra field of the entry they
+     * link to, at offsets computed when it was written.
+     */
+    try {
+      for (ExtraField.Segment segment : entry.getLocalExtra().getSegments()) {
+        if (segment instanceof ExtraField.LinkingEntrySegment) {
+          return false;
+        }
+      }
+    } catch (IOException e) {
+      /*
+       * The extra field was read from the file and cannot be parsed, so it cannot be padded.
+       */
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Moves data towards the end of the zip file. Data is copied from its end to its start so that
+   * the source and destination may overlap.
+   *
+   * @param from the offset of the data
+   * @param to the offset to move the data to, not smaller than {@code from}
+   * @param count how many bytes to move
+   * @param buffer a buffer to copy the data through
+   * @throws IOException failed to read or write the data
+   */
+  private void directMove(long from, long to, long count, ByteBuffer buffer) throws IOException {
+    Preconditions.checkArgument(from >= 0, "from < 0");
+    Preconditions.checkArgument(to >= from, "to < from");
+    Preconditions.checkNotNull(raf, "raf == null");
+
+    FileChannel fileChannel = raf.getChannel();
+    long remaining = count;
+    while (remaining > 0) {
+      int size = Ints.checkedCast(Math.min(buffer.capacity(), remaining));
+      remaining -= size;
+
+      buffer.clear();
+      buffer.limit(size);
+      while (buffer.hasRemaining()) {
+        if (fileChannel.read(buffer, from + remaining + buffer.position()) < 0) {
+          throw new EOFException(
+              "Failed to move " + count + " bytes at " + from + ": premature EOF");
+        }
+      }
+
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        fileChannel.write(buffer, to + remaining + buffer.position());
+      }
+      bytesWritten += size;
+    }
+  }
+
+  /** A movement of an entry planned by {@link #realignInPlace()}. */
+  private static final class RealignMove {
+
+    /** Where the entry is now. */
+    final FileUseMapEntry<StoredEntry> mapEntry;
+
+    /** Where the local header of the entry is written. */
+    final long newStart;
+
+    /** Where the data of the entry is moved to, not before where it is now. */
+    final long newDataStart;
+
+    /** Where the entry ends, data descriptor included. */
+    final long newEnd;
+
+    /** The local extra field of the entry once moved. */
+    final ExtraField localExtra;
+
+    RealignMove(
+        FileUseMapEntry<StoredEntry> mapEntry,
+        long newStart,
+        long newDataStart,
+        long newEnd,
+        ExtraField localExtra) {
+      this.mapEntry = mapEntry;
+      this.newStart = newStart;
+      this.newDataStart = newDataStart;
+      this.newEnd = newEnd;
+      this.localExtra = localExtra;
+    }
+  }
+
   /**
    * Realigns a stored entry, if necessary. Realignment is done by removing and re-adding the file
    * if it was not aligned.
@@ -2222,6 +2997,15 @@ public class ZFile implements Closeable {
    * @throws IOException failed to read/write an entry; the entry may no longer exist in the file
    */
   boolean realign(StoredEntry entry) throws IOException {
+    /*
+     * LSPatch: entries contained in others are placed by the entry containing them, which
+     * cannot be moved without breaking them.
+     */
+    if (containedEntries.get(entry.getCentralDirectoryHeader().getName()) == entry
+        || containingEntries.contains(entry)) {
+      return false;
+    }
+
     FileUseMapEntry<StoredEntry> mapEntry =
         entries.get(entry.getCentralDirectoryHeader().getName());
     Verify.verify(entry == mapEntry.getStore());
@@ -2387,8 +3171,17 @@ public class ZFile implements Closeable {
     reopenRw();
     Preconditions.checkNotNull(raf, "raf == null");
 
-    raf.seek(offset);
-    raf.write(data, start, count);
+    if (useFileChannel) {
+      ByteBuffer src = ByteBuffer.wrap(data, start, count);
+      FileChannel fileChannel = raf.getChannel();
+      while (src.hasRemaining()) {
+        fileChannel.write(src, offset + src.position() - start);
+      }
+    } else {
+      raf.seek(offset);
+      raf.write(data, start, count);
+    }
+    bytesWritten += count;
   }
 
   /**
@@ -2464,6 +3257,20 @@ public class ZFile implements Closeable {
       Preconditions.checkNotNull(raf, "raf == null");
     }
 
+    if (mapped != null) {
+      if (offset >= mapped.limit()) {
+        return -1;
+      }
+
+      ByteBuffer src =
+          mappedSlice(offset, Ints.checkedCast(Math.min(dest.remaining(), mapped.limit() - offset)));
+      int read = src.remaining();
+      dest.put(src);
+      return read;
+    } else if (useFileChannel) {
+      return raf.getChannel().read(dest, offset);
+    }
+
     raf.seek(offset);
     return raf.getChannel().read(dest);
   }
@@ -2514,10 +3321,8 @@ public class ZFile implements Closeable {
       Preconditions.checkNotNull(raf, "raf == null");
     }
 
-    FileChannel fileChannel = raf.getChannel();
     while (dest.hasRemaining()) {
-      fileChannel.position(offset);
-      int chunkSize = fileChannel.read(dest);
+      int chunkSize = directRead(offset, dest);
       if (chunkSize == -1) {
         throw new EOFException("Failed to read " + dest.remaining() + " more bytes: premature EOF");
       }
@@ -2525,6 +3330,50 @@ public class ZFile implements Closeable {
     }
   }
 
+  /**
+   * Copies data from the zip file to a channel without reading it into memory. The zip file must
+   * be open.
+   *
+   * @param offset the offset at which to start reading
+   * @param count how many bytes to copy
+   * @param target the channel to write to
+   * @param position the position in {@code target} where data should be written
+   * @throws IOException failed to copy the data or there is not enough data to copy
+   */
+  void directTransferTo(long offset, long count, FileChannel target, long position)
+      throws IOException {
+    Preconditions.checkArgument(offset >= 0, "offset < 0");
+    Preconditions.checkArgument(count >= 0, "count < 0");
+    Preconditions.checkState(state != ZipFileState.CLOSED, "state == ZipFileState.CLOSED");
+    Preconditions.checkNotNull(raf, "raf == null");
+
+    FileChannel fileChannel = raf.getChannel();
+    target.position(position);
+    while (count > 0) {
+      long transferred = fileChannel.transferTo(offset, count, target);
+      if (transferred <= 0) {
+        throw new EOFException("Failed to transfer " + count + " more bytes: premature EOF");
+      }
+      offset += transferred;
+      count -= transferred;
+    }
+  }
+
+  /**
+   * Obtains a view of part of the mapped file. The file must be mapped.
+   *
+   * @param offset the offset of the view in the file
+   * @param size the size of the view
+   * @return a buffer with the data, positioned at zero
+   */
+  private ByteBuffer mappedSlice(long offset, int size) {
+    Preconditions.checkNotNull(mapped, "mapped == null");
+    ByteBuffer slice = mapped.duplicate();
+    slice.position(Ints.checkedCast(offset));
+    slice.limit(Ints.checkedCast(offset + size));
+    return slice.slice();
+  }
+
   /**
    * Adds all files and directories recursively.
    *
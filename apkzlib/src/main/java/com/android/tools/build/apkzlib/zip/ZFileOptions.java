@@ -20,7 +20,9 @@ import com.android.tools.build.apkzlib.bytestorage.ByteStorageFactory;
 import com.android.tools.build.apkzlib.bytestorage.ChunkBasedByteStorageFactory;
 import com.android.tools.build.apkzlib.bytestorage.OverflowToDiskByteStorageFactory;
 import com.android.tools.build.apkzlib.bytestorage.TemporaryDirectory;
+import com.android.tools.build.apkzlib.zip.compress.CompressionExecutors;
 import com.android.tools.build.apkzlib.zip.compress.DeflateExecutionCompressor;
+import com.android.tools.build.apkzlib.zip.compress.ParallelDeflateCompressor;
 import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
 import com.google.common.base.Supplier;
 import java.util.zip.Deflater;
@@ -34,6 +36,15 @@ public class ZFileOptions {
   /** The compressor to use. */
   private Compressor compressor;
 
+  /** The classifier deciding which files are stored without attempting compression. */
+  private CompressionClassifier compressionClassifier;
+
+  /** Should the file be accessed through positional file channel operations? */
+  private boolean useFileChannel;
+
+  /** Should entries of read-only files be read from the central directory only when needed? */
+  private boolean lazyCentralDirectory;
+
   /** Should timestamps be zeroed? */
   private boolean noTimestamps;
 
@@ -70,6 +81,7 @@ public class ZFileOptions {
         new ChunkBasedByteStorageFactory(
             new OverflowToDiskByteStorageFactory(TemporaryDirectory::newSystemTemporaryDirectory));
     compressor = new DeflateExecutionCompressor(Runnable::run, Deflater.DEFAULT_COMPRESSION);
+    compressionClassifier = CompressionClassifiers.never();
     alignmentRule = AlignmentRules.compose();
     verifyLogFactory = VerifyLogs::devNull;
 
@@ -125,6 +137,95 @@ public class ZFileOptions {
     return this;
   }
 
+  /**
+   * Sets whether new entries should be deflated in the background. When enabled, {@link
+   * ZFile#add(String, java.io.InputStream)} returns as soon as the data has been stored and the
+   * entry is deflated by {@link CompressionExecutors#shared()}, with large entries split in blocks
+   * deflated in parallel (see {@link ParallelDeflateCompressor}); all pending entries are collected
+   * before the zip is updated. When disabled, entries are deflated in the calling thread. This
+   * replaces the compressor set with {@link #setCompressor(Compressor)}.
+   *
+   * @param parallelCompression should entries be compressed in the background?
+   */
+  public ZFileOptions setParallelCompression(boolean parallelCompression) {
+    if (parallelCompression) {
+      compressor =
+          new ParallelDeflateCompressor(CompressionExecutors.shared(), Deflater.DEFAULT_COMPRESSION);
+    } else {
+      compressor = new DeflateExecutionCompressor(Runnable::run, Deflater.DEFAULT_COMPRESSION);
+    }
+    return this;
+  }
+
+  /**
+   * Obtains the compression classifier. By default, compression is always attempted.
+   *
+   * @return the compression classifier
+   */
+  public CompressionClassifier getCompressionClassifier() {
+    return compressionClassifier;
+  }
+
+  /**
+   * Sets the classifier used to decide which files are stored without attempting compression.
+   * Files stored because of the classifier are counted by {@link
+   * ZFile#getCompressionSkippedBytes()}.
+   *
+   * @param compressionClassifier the compression classifier
+   */
+  public ZFileOptions setCompressionClassifier(CompressionClassifier compressionClassifier) {
+    this.compressionClassifier = compressionClassifier;
+    return this;
+  }
+
+  /**
+   * Obtains whether the file should be accessed through positional file channel operations.
+   *
+   * @return should a file channel be used?
+   */
+  public boolean getUseFileChannel() {
+    return useFileChannel;
+  }
+
+  /**
+   * Sets whether the file should be accessed through positional file channel operations instead of
+   * seeking a random access file for every read and write. When set, files opened in read-only mode
+   * are mapped in memory so reading their central directory and entries does not copy data through
+   * the file, and entries copied from another zip file (see {@link ZFile#addRawCopy(StoredEntry,
+   * String)}) are transferred from file to file when written.
+   *
+   * @param useFileChannel should a file channel be used?
+   */
+  public ZFileOptions setUseFileChannel(boolean useFileChannel) {
+    this.useFileChannel = useFileChannel;
+    return this;
+  }
+
+  /**
+   * Obtains whether entries of read-only files are read from the central directory only when
+   * needed.
+   *
+   * @return are entries read lazily?
+   */
+  public boolean getLazyCentralDirectory() {
+    return lazyCentralDirectory;
+  }
+
+  /**
+   * Sets whether entries of files opened in read-only mode should be read from the central
+   * directory only when needed. When set, opening a file only indexes the central directory by
+   * file name; entries are created when first obtained through {@link ZFile#get(String)}, or all
+   * at once by {@link ZFile#entries()}. Entries are not checked for overlaps and {@link
+   * ZFile#getExtraDirectoryOffset()} is always {@code 0}. Files opened in read-write mode always
+   * read all entries.
+   *
+   * @param lazyCentralDirectory should entries be read lazily?
+   */
+  public ZFileOptions setLazyCentralDirectory(boolean lazyCentralDirectory) {
+    this.lazyCentralDirectory = lazyCentralDirectory;
+    return this;
+  }
+
   /**
    * Obtains whether timestamps should be zeroed.
    *
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors to run compression tasks in the background.
+ *
+ * <p>The shared executor is created on first use and is used by all zip files that compress in
+ * parallel, so the number of threads deflating at any given time is bounded by the number of
+ * available processors, regardless of how many zip files are being written at once. Its threads are
+ * daemon threads so they never prevent the JVM from exiting.
+ */
+public final class CompressionExecutors {
+
+  /** Lazily created shared executor. */
+  private static ExecutorService shared;
+
+  private CompressionExecutors() {}
+
+  /**
+   * Obtains the shared compression executor.
+   *
+   * @return an executor with as many threads as there are available processors
+   */
+  public static synchronized ExecutorService shared() {
+    if (shared == null) {
+      shared =
+          Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(),
+              new ThreadFactoryBuilder()
+                  .setNameFormat("apkzlib-compress-%d")
+                  .setDaemon(true)
+                  .build());
+    }
+
+    return shared;
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import com.android.tools.build.apkzlib.bytestorage.ByteStorage;
+import com.android.tools.build.apkzlib.bytestorage.CloseableByteSourceFromOutputStreamBuilder;
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
+
+/**
+ * Compressor that uses deflate with an executor and that splits large sources in blocks that are
+ * deflated in parallel.
+ *
+ * <p>Each block is deflated by its own {@link Deflater} primed with the last 32 kB of the previous
+ * block as a preset dictionary. All blocks but the last are terminated with a sync flush, which
+ * leaves them byte-aligned and without the final bit set, so their concatenation is a single valid
+ * raw deflate stream that any inflater can read. The dictionary keeps back references across block
+ * boundaries, so the compression ratio is very close to deflating the whole source at once.
+ *
+ * <p>Block tasks are sent to the same executor used to schedule compression, but the thread that
+ * compresses a source runs any of its blocks no other thread has picked up yet. This means that
+ * using a bounded executor, such as {@link CompressionExecutors#shared()}, never deadlocks even if
+ * all its threads are compressing large sources. At most {@code parallelism} blocks are in flight
+ * for each source, so memory use is bounded regardless of the source size.
+ *
+ * <p>Sources no larger than a block are deflated in the calling thread, exactly like {@link
+ * DeflateExecutionCompressor}.
+ */
+public class ParallelDeflateCompressor extends ExecutorCompressor {
+
+  /** Default size of each block. */
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  /** Size of the deflate window, which is the maximum useful dictionary size. */
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  /** The executor that deflates blocks. */
+  private final Executor executor;
+
+  /** Deflate compression level. */
+  private final int level;
+
+  /** Size of each block. */
+  private final int blockSize;
+
+  /** Maximum number of blocks of a single source being deflated at the same time. */
+  private final int parallelism;
+
+  /**
+   * Creates a new compressor using {@link #DEFAULT_BLOCK_SIZE} blocks and as many blocks in flight
+   * as there are available processors.
+   *
+   * @param executor the executor to run deflation tasks
+   * @param level the compression level
+   */
+  public ParallelDeflateCompressor(Executor executor, int level) {
+    this(executor, level, DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new compressor.
+   *
+   * @param executor the executor to run deflation tasks
+   * @param level the compression level
+   * @param blockSize the size of each block; sources no larger than this are not split
+   * @param parallelism the maximum number of blocks of a single source being deflated at the same
+   *     time
+   */
+  public ParallelDeflateCompressor(Executor executor, int level, int blockSize, int parallelism) {
+    super(executor);
+
+    Preconditions.checkArgument(blockSize >= DICTIONARY_SIZE, "blockSize < %s", DICTIONARY_SIZE);
+    Preconditions.checkArgument(parallelism > 0, "parallelism <= 0");
+
+    this.executor = executor;
+    this.level = level;
+    this.blockSize = blockSize;
+    this.parallelism = parallelism;
+  }
+
+  @Override
+  protected CompressionResult immediateCompress(CloseableByteSource source, ByteStorage storage)
+      throws Exception {
+    long sourceSize = source.size();
+    CloseableByteSourceFromOutputStreamBuilder resultBuilder = storage.makeBuilder();
+
+    if (sourceSize <= blockSize) {
+      byte[] data = source.read();
+      resultBuilder.write(deflateBlock(data, 0, data.length, true));
+    } else {
+      long blockCount = (sourceSize + blockSize - 1) / blockSize;
+      ArrayDeque<FutureTask<byte[]>> inFlight = new ArrayDeque<>();
+      long nextBlock = 0;
+      try {
+        while (nextBlock < blockCount || !inFlight.isEmpty()) {
+          while (nextBlock < blockCount && inFlight.size() < parallelism) {
+            FutureTask<byte[]> task = newBlockTask(source, nextBlock, blockCount);
+            inFlight.add(task);
+            executor.execute(task);
+            nextBlock++;
+          }
+
+          // Run the block here if no one picked it up, otherwise just wait for it.
+          FutureTask<byte[]> first = inFlight.remove();
+          first.run();
+          resultBuilder.write(getBlock(first));
+        }
+      } finally {
+        for (FutureTask<byte[]> task : inFlight) {
+          task.cancel(false);
+        }
+      }
+    }
+
+    CloseableByteSource result = resultBuilder.build();
+    if (result.size() >= sourceSize) {
+      result.close();
+      return new CompressionResult(source, CompressionMethod.STORE, sourceSize);
+    } else {
+      return new CompressionResult(result, CompressionMethod.DEFLATE, result.size());
+    }
+  }
+
+  /**
+   * Creates a task that reads and deflates one block of a source.
+   *
+   * @param source the source being compressed
+   * @param block the index of the block
+   * @param blockCount the number of blocks in the source
+   * @return the task, whose result is the deflated block
+   */
+  private FutureTask<byte[]> newBlockTask(CloseableByteSource source, long block, long blockCount) {
+    long start = block * blockSize;
+    long dictionaryStart = Math.max(0, start - DICTIONARY_SIZE);
+    return new FutureTask<>(
+        () -> {
+          byte[] data = source.slice(dictionaryStart, start - dictionaryStart + blockSize).read();
+          Deflater deflater = new Deflater(level, true);
+          try {
+            int dictionaryLength = (int) (start - dictionaryStart);
+            if (dictionaryLength > 0) {
+              deflater.setDictionary(data, 0, dictionaryLength);
+            }
+
+            boolean last = block == blockCount - 1;
+            return deflate(deflater, data, dictionaryLength, data.length - dictionaryLength, last);
+          } finally {
+            deflater.end();
+          }
+        });
+  }
+
+  /**
+   * Deflates data held in memory without a dictionary.
+   *
+   * @param data the data
+   * @param offset the offset of the data to deflate
+   * @param length the number of bytes to deflate
+   * @param last should the stream be finished?
+   * @return the deflated data
+   */
+  private byte[] deflateBlock(byte[] data, int offset, int length, boolean last) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      return deflate(deflater, data, offset, length, last);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Feeds data into a deflater and collects its output. If this is not the last block, the output
+   * is sync flushed instead of finished so that more blocks can follow.
+   *
+   * @param deflater the deflater, already primed with a dictionary if needed
+   * @param data the data
+   * @param offset the offset of the data to deflate
+   * @param length the number of bytes to deflate
+   * @param last is this the last block in the stream?
+   * @return the deflated data
+   */
+  private static byte[] deflate(
+      Deflater deflater, byte[] data, int offset, int length, boolean last) {
+    deflater.setInput(data, offset, length);
+    ByteArrayOutputStream output = new ByteArrayOutputStream(length / 2 + 64);
+    byte[] buffer = new byte[64 * 1024];
+    if (last) {
+      deflater.finish();
+      while (!deflater.finished()) {
+        int count = deflater.deflate(buffer);
+        output.write(buffer, 0, count);
+      }
+    } else {
+      int count;
+      do {
+        count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        output.write(buffer, 0, count);
+      } while (count == buffer.length);
+    }
+
+    return output.toByteArray();
+  }
+
+  /**
+   * Obtains the result of a block task that has already been run.
+   *
+   * @param task the task
+   * @return the deflated block
+   * @throws IOException failed to read or deflate the block
+   */
+  private static byte[] getBlock(FutureTask<byte[]> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while deflating block", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to deflate block", e.getCause());
+    }
+  }
+}
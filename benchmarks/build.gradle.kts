@@ -0,0 +1,33 @@
+val androidSourceCompatibility: JavaVersion by rootProject.extra
+val androidTargetCompatibility: JavaVersion by rootProject.extra
+
+plugins {
+    id("java-library")
+    alias(lspatch.plugins.champeau.jmh)
+}
+
+java {
+    sourceCompatibility = androidSourceCompatibility
+    targetCompatibility = androidTargetCompatibility
+}
+
+dependencies {
+    jmh(projects.apkzlib)
+    jmh(projects.patch)
+}
+
+jmh {
+    jmhVersion.set(lspatch.versions.jmh)
+    profilers.add("gc")
+    resultFormat.set("JSON")
+}
+
+// the patch benchmark needs the same loader artifacts and keystore as the jar
+tasks.named<ProcessResources>("processJmhResources") {
+    dependsOn(":meta-loader:copyDebug")
+    dependsOn(":patch-loader:copyDebug")
+    into("assets") {
+        from("${rootProject.projectDir}/jar/src/main/assets")
+        from("${rootProject.projectDir}/out/assets/debug")
+    }
+}
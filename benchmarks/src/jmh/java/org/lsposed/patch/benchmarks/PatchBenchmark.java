@@ -0,0 +1,92 @@
+package org.lsposed.patch.benchmarks;
+
+import org.lsposed.patch.LSPatch;
+import org.lsposed.patch.util.Logger;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole pipeline as the command line runs it: nested apk linking, manifest editing, loader
+ * artifacts and signing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class PatchBenchmark {
+
+    @Param({"MANY_SMALL", "FEW_HUGE"})
+    public SyntheticApks.Shape shape;
+
+    File dir;
+    File source;
+    File output;
+    LSPatch lspatch;
+
+    /** Bytes of source apk patched, reported as a rate next to the ops/s. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    private static final class QuietLogger extends Logger {
+        @Override
+        public void d(String msg) {
+        }
+
+        @Override
+        public void i(String msg) {
+        }
+
+        @Override
+        public void e(String msg) {
+            System.err.println(msg);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("patch-benchmark").toFile();
+        source = new File(dir, "source.apk");
+        output = new File(dir, "output.apk");
+        SyntheticApks.write(source, shape);
+        lspatch = new LSPatch(new QuietLogger(), "-f", "-o", dir.getPath(), source.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.delete();
+        output.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public void patch(Bytes bytes) throws Exception {
+        lspatch.patch(source, output);
+        bytes.bytes += source.length();
+    }
+}
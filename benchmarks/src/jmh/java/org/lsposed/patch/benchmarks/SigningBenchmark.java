@@ -0,0 +1,100 @@
+package org.lsposed.patch.benchmarks;
+
+import com.android.tools.build.apkzlib.sign.SigningExtension;
+import com.android.tools.build.apkzlib.sign.SigningOptions;
+import com.android.tools.build.apkzlib.zip.ZFile;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SigningBenchmark {
+
+    @Param({"MANY_SMALL", "FEW_HUGE"})
+    public SyntheticApks.Shape shape;
+
+    @Param({"false", "true"})
+    public boolean v3;
+
+    File dir;
+    File source;
+    File work;
+    KeyStore.PrivateKeyEntry key;
+
+    /** Bytes digested, reported as a rate next to the ops/s. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("signing-benchmark").toFile();
+        source = new File(dir, "source.apk");
+        work = new File(dir, "work.apk");
+        SyntheticApks.write(source, shape);
+
+        // the default keystore shipped with the patcher
+        var keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (var is = getClass().getClassLoader().getResourceAsStream("assets/keystore")) {
+            keyStore.load(is, "123456".toCharArray());
+        }
+        key = (KeyStore.PrivateKeyEntry) keyStore.getEntry("key0", new KeyStore.PasswordProtection("123456".toCharArray()));
+    }
+
+    @Setup(Level.Invocation)
+    public void copySource() throws Exception {
+        Files.copy(source.toPath(), work.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.delete();
+        work.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public void sign(Bytes bytes) throws Exception {
+        try (var zFile = ZFile.openReadWrite(work)) {
+            new SigningExtension(SigningOptions.builder()
+                    .setMinSdkVersion(28)
+                    .setV2SigningEnabled(true)
+                    .setV3SigningEnabled(v3)
+                    .setCertificates((X509Certificate[]) key.getCertificateChain())
+                    .setKey(key.getPrivateKey())
+                    .build()).register(zFile);
+        }
+        bytes.bytes += work.length();
+    }
+}
@@ -0,0 +1,146 @@
+package org.lsposed.patch.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import pxb.android.axml.AxmlWriter;
+import pxb.android.axml.NodeVisitor;
+
+/**
+ * Apks the benchmarks run on, generated from a fixed seed.
+ * They are written with java.util.zip so the fixtures do not depend on the code being measured.
+ */
+final class SyntheticApks {
+
+    static final String PACKAGE_NAME = "org.lsposed.patch.benchmarks.app";
+
+    private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+
+    private static final String[] WORDS = {
+            "layout", "drawable", "string", "color", "style", "attr", "dimen", "id", "menu", "xml",
+            "android", "view", "text", "image", "button", "width", "height", "match_parent",
+    };
+
+    enum Shape {
+        /** Thousands of small resources, most of them compressible. */
+        MANY_SMALL(4000, 4 * 1024, 0, 0),
+        /** A few huge entries, half of them incompressible like native libraries. */
+        FEW_HUGE(16, 1024, 4, 32 * 1024 * 1024),
+        /** Tiny entries with long paths, which make a deep central directory. */
+        DEEP_DIRECTORY(20000, 64, 0, 0);
+
+        final int smallCount;
+        final int smallSize;
+        final int hugeCount;
+        final int hugeSize;
+
+        Shape(int smallCount, int smallSize, int hugeCount, int hugeSize) {
+            this.smallCount = smallCount;
+            this.smallSize = smallSize;
+            this.hugeCount = hugeCount;
+            this.hugeSize = hugeSize;
+        }
+    }
+
+    private SyntheticApks() {
+    }
+
+    /**
+     * Contents of an apk of the given shape, in the order they are written.
+     * Huge entries alternate between text and random data, the latter are native libraries.
+     */
+    static Map<String, byte[]> entries(Shape shape) throws IOException {
+        var random = new Random(shape.ordinal());
+        var entries = new LinkedHashMap<String, byte[]>();
+        entries.put("AndroidManifest.xml", manifest(PACKAGE_NAME, 21));
+        entries.put("classes.dex", randomBytes(random, 256 * 1024));
+        entries.put("resources.arsc", text(random, 128 * 1024));
+        for (int i = 0; i < shape.smallCount; i++) {
+            String name;
+            if (shape == Shape.DEEP_DIRECTORY) {
+                name = "res/" + WORDS[i % WORDS.length] + "/" + WORDS[(i / WORDS.length) % WORDS.length]
+                        + "/very/deeply/nested/resource/directory/entry_" + i + ".xml";
+            } else {
+                name = "res/" + WORDS[i % WORDS.length] + "/entry_" + i + ".xml";
+            }
+            entries.put(name, text(random, shape.smallSize));
+        }
+        for (int i = 0; i < shape.hugeCount; i++) {
+            if (i % 2 == 0) {
+                entries.put("lib/arm64-v8a/libhuge" + i + ".so", randomBytes(random, shape.hugeSize));
+            } else {
+                entries.put("assets/huge" + i + ".txt", text(random, shape.hugeSize));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Writes an apk of the given shape.
+     * Native libraries are stored and everything else is deflated, nothing is aligned.
+     */
+    static void write(File file, Shape shape) throws IOException {
+        write(file, entries(shape));
+    }
+
+    static void write(File file, Map<String, byte[]> entries) throws IOException {
+        try (var zip = new ZipOutputStream(new FileOutputStream(file))) {
+            for (var entry : entries.entrySet()) {
+                var zipEntry = new ZipEntry(entry.getKey());
+                var data = entry.getValue();
+                if (entry.getKey().endsWith(".so")) {
+                    var crc = new CRC32();
+                    crc.update(data);
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(data.length);
+                    zipEntry.setCompressedSize(data.length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(zipEntry);
+                zip.write(data);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /** A binary manifest with just what the patcher reads. */
+    static byte[] manifest(String packageName, int minSdkVersion) throws IOException {
+        var writer = new AxmlWriter();
+        writer.ns("android", ANDROID_NS, -1);
+        var manifest = writer.child(null, "manifest");
+        manifest.attr(null, "package", -1, NodeVisitor.TYPE_STRING, packageName);
+        var usesSdk = manifest.child(null, "uses-sdk");
+        usesSdk.attr(ANDROID_NS, "minSdkVersion", 0x0101020c, NodeVisitor.TYPE_FIRST_INT, minSdkVersion);
+        usesSdk.end();
+        var application = manifest.child(null, "application");
+        application.attr(ANDROID_NS, "name", 0x01010003, NodeVisitor.TYPE_STRING, packageName + ".App");
+        application.end();
+        manifest.end();
+        writer.end();
+        return writer.toByteArray();
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        var data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    // words picked at random compress about as well as xml does
+    private static byte[] text(Random random, int size) {
+        var builder = new StringBuilder(size + 16);
+        while (builder.length() < size) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextBoolean() ? ' ' : '\n');
+        }
+        builder.setLength(size);
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
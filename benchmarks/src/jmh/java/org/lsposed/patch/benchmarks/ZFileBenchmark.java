@@ -0,0 +1,149 @@
+package org.lsposed.patch.benchmarks;
+
+import com.android.tools.build.apkzlib.zip.AlignmentRules;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileOptions;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ZFileBenchmark {
+
+    @Param({"MANY_SMALL", "FEW_HUGE", "DEEP_DIRECTORY"})
+    public SyntheticApks.Shape shape;
+
+    File dir;
+    File source;
+    Map<String, byte[]> contents;
+    long contentsSize;
+
+    /** Bytes processed, reported as a rate next to the ops/s. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /** A fresh copy of the source apk for benchmarks that modify it. */
+    @State(Scope.Thread)
+    public static class WorkCopy {
+        File file;
+
+        @Setup(Level.Invocation)
+        public void copy(ZFileBenchmark benchmark) throws IOException {
+            file = new File(benchmark.dir, "work.apk");
+            Files.copy(benchmark.source.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("zfile-benchmark").toFile();
+        source = new File(dir, "source.apk");
+        contents = SyntheticApks.entries(shape);
+        SyntheticApks.write(source, contents);
+        contentsSize = contents.values().stream().mapToLong(data -> data.length).sum();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        var files = dir.listFiles();
+        if (files != null) {
+            for (var file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void open(Bytes bytes, Blackhole blackhole) throws IOException {
+        try (var zFile = ZFile.openReadOnly(source)) {
+            blackhole.consume(zFile.entries().size());
+        }
+        bytes.bytes += source.length();
+    }
+
+    @Benchmark
+    public void openLazy(Blackhole blackhole) throws IOException {
+        var options = new ZFileOptions().setLazyCentralDirectory(true).setUseFileChannel(true);
+        try (var zFile = ZFile.openReadOnly(source, options)) {
+            blackhole.consume(zFile.get("AndroidManifest.xml"));
+        }
+    }
+
+    @Benchmark
+    public void add(Bytes bytes) throws IOException {
+        var output = new File(dir, "add.apk");
+        output.delete();
+        try (var zFile = ZFile.openReadWrite(output, new ZFileOptions().setParallelCompression(true))) {
+            for (var entry : contents.entrySet()) {
+                zFile.add(entry.getKey(), new ByteArrayInputStream(entry.getValue()), !entry.getKey().endsWith(".so"));
+            }
+        }
+        bytes.bytes += contentsSize;
+    }
+
+    @Benchmark
+    public void update(WorkCopy work) throws IOException {
+        try (var zFile = ZFile.openReadWrite(work.file)) {
+            zFile.add("AndroidManifest.xml", new ByteArrayInputStream(SyntheticApks.manifest("updated", 28)));
+        }
+    }
+
+    @Benchmark
+    public void realign(WorkCopy work, Bytes bytes) throws IOException {
+        var options = new ZFileOptions().setAlignmentRule(AlignmentRules.compose(
+                AlignmentRules.constantForSuffix(".so", 4096),
+                AlignmentRules.constant(4)));
+        try (var zFile = ZFile.openReadWrite(work.file, options)) {
+            zFile.realign();
+        }
+        bytes.bytes += work.file.length();
+    }
+
+    @Benchmark
+    public void nestedLink(Bytes bytes) throws IOException {
+        var output = new File(dir, "nested.apk");
+        output.delete();
+        try (var zFile = ZFile.openReadWrite(output, new ZFileOptions().setUseFileChannel(true));
+             var nested = zFile.addNestedZip(ignore -> "assets/origin.apk", source, false)) {
+            for (StoredEntry entry : nested.entries()) {
+                var name = entry.getCentralDirectoryHeader().getName();
+                nested.addFileLink(name, name);
+            }
+        }
+        bytes.bytes += source.length();
+    }
+}
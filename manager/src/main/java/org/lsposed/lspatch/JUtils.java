@@ -124,35 +124,32 @@ public class JUtils {
         }
     }
 
+    // the base of a split install comes first, the splits of a patched one are only re-signed
     @RequiresApi(api = Build.VERSION_CODES.Q)
     public static List<String> processApkPath(Context context, List<String> paths){
         Log.i("OPatchOutput", "processApkPath: " + paths.toString());
-        if (paths.size() == 1){
-            String apkPath = paths.get(0);
-            try (ZipFile zInp = new ZipFile(apkPath)){
-                ZipEntry entry = zInp.getEntry("assets/lspatch/origin.apk");
-
-                Log.i("OPatchOutput", "processApkPath: " + entry);
-                if (entry != null){
-                    String cachePath = context.getCacheDir().getAbsolutePath() + File.separator + "lspatch" + File.separator + System.currentTimeMillis()+".apk";
-                    File newFile = new File(cachePath).getParentFile();
-                    if (!newFile.exists()){
-                        newFile.mkdirs();
-                    }
-                    FileOutputStream cacheFile = new FileOutputStream(cachePath);
-                    FileUtils.copy(zInp.getInputStream(entry),cacheFile);
-                    cacheFile.close();
-                    paths.set(0,cachePath);
+        if (paths.isEmpty()) return paths;
+        String apkPath = paths.get(0);
+        try (ZipFile zInp = new ZipFile(apkPath)){
+            ZipEntry entry = zInp.getEntry("assets/lspatch/origin.apk");
+
+            Log.i("OPatchOutput", "processApkPath: " + entry);
+            if (entry != null){
+                String cachePath = context.getCacheDir().getAbsolutePath() + File.separator + "lspatch" + File.separator + System.currentTimeMillis()+".apk";
+                File newFile = new File(cachePath).getParentFile();
+                if (!newFile.exists()){
+                    newFile.mkdirs();
                 }
-            } catch (IOException e) {
-                Log.i("OPatchOutput", "processApkPath: " + e);
-                return paths;
+                FileOutputStream cacheFile = new FileOutputStream(cachePath);
+                FileUtils.copy(zInp.getInputStream(entry),cacheFile);
+                cacheFile.close();
+                paths.set(0,cachePath);
             }
-            return paths;
-
-        }else {
+        } catch (IOException e) {
+            Log.i("OPatchOutput", "processApkPath: " + e);
             return paths;
         }
+        return paths;
     }
 
     public static boolean isGenshinInstalled(Context context){
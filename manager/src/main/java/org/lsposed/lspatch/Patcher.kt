@@ -11,6 +11,7 @@ import org.lsposed.lspatch.share.Constants
 import org.lsposed.lspatch.share.LSPConfig
 import org.lsposed.lspatch.share.PatchConfig
 import org.lsposed.patch.LSPatch
+import org.lsposed.patch.PatchListener
 import org.lsposed.patch.util.Logger
 import java.io.File
 import java.io.IOException
@@ -36,6 +37,7 @@ object Patcher {
             return buildList {
                 addAll(mReadPath)
                 add("-o"); add(lspApp.tmpApkDir.absolutePath)
+                if (mReadPath.size > 1) add("--splits")
                 if (config.debuggable) add("-d")
                 add("-l"); add(config.sigBypassLevel.toString())
                 if (config.useManager) add("--manager")
@@ -52,9 +54,11 @@ object Patcher {
         }
     }
 
-    suspend fun patch(logger: Logger, options: Options) {
+    suspend fun patch(logger: Logger, options: Options, listener: PatchListener? = null) {
         withContext(Dispatchers.IO) {
-            LSPatch(logger, *options.toStringArray()).doCommandLine()
+            LSPatch(logger, *options.toStringArray()).apply {
+                setPatchListener(listener)
+            }.doCommandLine()
             try {
                 val uri = Configs.storageDirectory?.toUri()
                     ?: throw IOException("Uri is null")
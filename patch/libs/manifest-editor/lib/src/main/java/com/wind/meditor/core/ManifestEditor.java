@@ -11,8 +11,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.function.Function;
 
 import pxb.android.axml.AxmlReader;
+import pxb.android.axml.AxmlSplicer;
 import pxb.android.axml.AxmlVisitor;
 import pxb.android.axml.AxmlWriter;
 import pxb.android.axml.NodeVisitor;
@@ -59,20 +61,13 @@ public class ManifestEditor {
         AxmlWriter writer = new AxmlWriter();
 
         try {
-            reader.accept(new AxmlVisitor(writer) {
-                @Override
-                public NodeVisitor child(String ns, String name) {
-                    NodeVisitor child = super.child(ns, name);
-                    return new ManifestTagVisitor(child, properties);
-                }
-            });
+            reader.accept(editor(writer, properties));
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         try {
-            byte[] modified = writer.toByteArray();
-            outputStream.write(modified);
+            writer.writeTo(outputStream);
 //            Utils.writeBytesToFile(modified, dstManifestFilePath);
         } catch (IOException e) {
             e.printStackTrace();
@@ -83,4 +78,77 @@ public class ManifestEditor {
             }
         }
     }
+
+    /**
+     * Edits a manifest with properties that depend on what is in it.
+     * A first pass collects the facts the properties are made from, the second one splices the
+     * edits into the manifest, so the chunks the visitors leave alone are copied as they are.
+     * Manifests the splicer can not lay out are written again whole through the same visitors as
+     * {@link #processManifest()}.
+     */
+    public static Result process(byte[] manifest, Function<ManifestInfo, ModificationProperty> properties)
+            throws IOException {
+        ManifestInfo info = new ManifestInfo();
+        AxmlSplicer splicer = new AxmlSplicer(manifest);
+        splicer.accept(new AxmlVisitor() {
+            @Override
+            public NodeVisitor child(String ns, String name) {
+                return new InfoVisitor(null, name, info);
+            }
+        });
+
+        ModificationProperty property = properties.apply(info);
+        splicer.accept(editor(splicer, property));
+        byte[] data;
+        try {
+            data = splicer.toByteArray();
+        } catch (IOException e) {
+            AxmlWriter writer = new AxmlWriter();
+            new AxmlReader(manifest).accept(editor(writer, property));
+            data = writer.toByteArray();
+        }
+        return new Result(info, data);
+    }
+
+    private static AxmlVisitor editor(AxmlVisitor writer, ModificationProperty properties) {
+        return new AxmlVisitor(writer) {
+            @Override
+            public NodeVisitor child(String ns, String name) {
+                NodeVisitor child = super.child(ns, name);
+                return new ManifestTagVisitor(child, properties);
+            }
+        };
+    }
+
+    public static class Result {
+        public final ManifestInfo info;
+        public final byte[] data;
+
+        Result(ManifestInfo info, byte[] data) {
+            this.info = info;
+            this.data = data;
+        }
+    }
+
+    private static class InfoVisitor extends NodeVisitor {
+        private final String tag;
+        private final ManifestInfo info;
+
+        InfoVisitor(NodeVisitor nv, String tag, ManifestInfo info) {
+            super(nv);
+            this.tag = tag;
+            this.info = info;
+        }
+
+        @Override
+        public void attr(String ns, String name, int resourceId, int type, Object obj) {
+            info.collect(tag, name, resourceId, obj);
+            super.attr(ns, name, resourceId, type, obj);
+        }
+
+        @Override
+        public NodeVisitor child(String ns, String name) {
+            return new InfoVisitor(super.child(ns, name), name, info);
+        }
+    }
 }
@@ -0,0 +1,32 @@
+package com.wind.meditor.core;
+
+import com.wind.meditor.utils.NodeValue;
+
+/**
+ * What {@link ManifestEditor#process} found in a manifest while reading it.
+ */
+public class ManifestInfo {
+
+    // android:appComponentFactory
+    private static final int APP_COMPONENT_FACTORY_RESOURCE_ID = 0x0101057a;
+
+    public String packageName;
+    public String appComponentFactory;
+    public int minSdkVersion;
+
+    void collect(String tag, String name, int resourceId, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (NodeValue.Manifest.TAG_NAME.equals(tag) && NodeValue.Manifest.PACKAGE.equals(name)) {
+            packageName = value.toString();
+        }
+        if (NodeValue.UsesSDK.TAG_NAME.equals(tag) && NodeValue.UsesSDK.MIN_SDK_VERSION.equals(name)) {
+            minSdkVersion = Integer.parseInt(value.toString());
+        }
+        if (appComponentFactory == null && ("appComponentFactory".equals(name)
+                || resourceId == APP_COMPONENT_FACTORY_RESOURCE_ID)) {
+            appComponentFactory = value.toString();
+        }
+    }
+}
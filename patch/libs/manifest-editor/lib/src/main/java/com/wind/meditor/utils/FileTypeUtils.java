@@ -1,14 +1,15 @@
 package com.wind.meditor.utils;
 
 import java.io.FileInputStream;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Windysha
  */
 public class FileTypeUtils {
 
-    private static final HashMap<String, String> fileHeaderCache = new HashMap<>();
+    private static final Map<String, String> fileHeaderCache = new ConcurrentHashMap<>();
 
     public static boolean isAndroidManifestFile(String filePath) {
         String sufix = filePath.substring(filePath.lastIndexOf(".") + 1);
@@ -40,7 +41,9 @@ public class FileTypeUtils {
             return cachedHeader;
         }
         String header = getFileHeaderInternal(filePath);
-        fileHeaderCache.put(filePath, header);
+        if (header != null) {
+            fileHeaderCache.put(filePath, header);
+        }
         return header;
     }
 
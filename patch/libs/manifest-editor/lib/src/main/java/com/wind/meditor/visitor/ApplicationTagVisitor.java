@@ -4,7 +4,9 @@ import com.wind.meditor.property.AttributeItem;
 import com.wind.meditor.property.ModificationProperty;
 import com.wind.meditor.utils.NodeValue;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import pxb.android.axml.NodeVisitor;
 
 /**
@@ -13,7 +15,7 @@ import pxb.android.axml.NodeVisitor;
 public class ApplicationTagVisitor extends ModifyAttributeVisitor {
 
     private List<ModificationProperty.MetaData> metaDataList;
-    private List<ModificationProperty.MetaData> deleteMetaDataList;
+    private Set<String> deleteMetaDataNames = new HashSet<>();
     private ModificationProperty.MetaData curMetaData;
     private List<ModificationProperty.Provider> providerList;
 
@@ -25,7 +27,13 @@ public class ApplicationTagVisitor extends ModifyAttributeVisitor {
                           List<ModificationProperty.Provider> providerList) {
         super(nv, modifyAttributeList);
         this.metaDataList = metaDataList;
-        this.deleteMetaDataList = deleteMetaDataList;
+        if (deleteMetaDataList != null) {
+            for (ModificationProperty.MetaData data : deleteMetaDataList) {
+                if (data.getName() != null) {
+                    deleteMetaDataNames.add(data.getName());
+                }
+            }
+        }
         this.providerList = providerList;
     }
 
@@ -38,10 +46,9 @@ public class ApplicationTagVisitor extends ModifyAttributeVisitor {
                 return new MetaDataVisitor(nv, new ModificationProperty.MetaData(
                         curMetaData.getName(), curMetaData.getValue()));
             }
-        } else if (NodeValue.MetaData.TAG_NAME.equals(name)
-                && deleteMetaDataList != null && !deleteMetaDataList.isEmpty()) {
+        } else if (NodeValue.MetaData.TAG_NAME.equals(name) && !deleteMetaDataNames.isEmpty()) {
             NodeVisitor nv = super.child(ns, name);
-            return new DeleteMetaDataVisitor(nv, deleteMetaDataList);
+            return new DeleteMetaDataVisitor(nv, deleteMetaDataNames);
         }
         return super.child(ns, name);
     }
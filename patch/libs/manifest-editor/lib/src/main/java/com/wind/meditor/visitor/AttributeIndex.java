@@ -0,0 +1,85 @@
+package com.wind.meditor.visitor;
+
+import com.wind.meditor.property.AttributeItem;
+import com.wind.meditor.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attribute items looked up by namespace and name or by resource id, finding the item a scan of
+ * the list in order would find.
+ */
+class AttributeIndex {
+
+    private final List<AttributeItem> items = new ArrayList<>();
+
+    // the namespace is checked on the few items sharing a name
+    private final Map<String, List<Integer>> byName = new HashMap<>();
+    private final Map<Integer, Integer> byResourceId = new HashMap<>();
+
+    // an item listed twice counts as applied once either is
+    private final Map<AttributeItem, Integer> firsts = new IdentityHashMap<>();
+
+    AttributeIndex(List<AttributeItem> items) {
+        if (items != null) {
+            for (AttributeItem item : items) {
+                add(item);
+            }
+        }
+    }
+
+    void add(AttributeItem item) {
+        int i = items.size();
+        items.add(item);
+        if (item == null) {
+            return;
+        }
+        firsts.putIfAbsent(item, i);
+        byName.computeIfAbsent(item.getName(), name -> new ArrayList<>(1)).add(i);
+        int resourceId = item.getResourceId();
+        if (resourceId >= 0) {
+            byResourceId.putIfAbsent(resourceId, i);
+        }
+    }
+
+    int size() {
+        return items.size();
+    }
+
+    AttributeItem get(int i) {
+        return items.get(i);
+    }
+
+    /**
+     * The position of the first item with the namespace and name, or with the resource id if it
+     * is one, -1 if there is none.
+     */
+    int find(String ns, String name, int resourceId) {
+        int found = -1;
+        List<Integer> named = byName.get(name);
+        if (named != null) {
+            for (int i : named) {
+                if (Utils.isEqual(ns, items.get(i).getNamespace())) {
+                    found = i;
+                    break;
+                }
+            }
+        }
+        if (resourceId >= 0) {
+            Integer i = byResourceId.get(resourceId);
+            if (i != null && (found < 0 || i < found)) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    // the position standing for every occurrence of the item at i
+    int first(int i) {
+        return firsts.get(items.get(i));
+    }
+}
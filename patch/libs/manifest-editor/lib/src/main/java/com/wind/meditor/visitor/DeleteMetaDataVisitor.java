@@ -1,8 +1,6 @@
 package com.wind.meditor.visitor;
 
-import com.wind.meditor.property.ModificationProperty;
-
-import java.util.List;
+import java.util.Set;
 
 import pxb.android.axml.NodeVisitor;
 
@@ -11,23 +9,18 @@ import pxb.android.axml.NodeVisitor;
  */
 public class DeleteMetaDataVisitor extends NodeVisitor {
 
-    private List<ModificationProperty.MetaData> deleteMetaDataList;
+    private Set<String> deleteMetaDataNames;
     private boolean shouldDeleteNode = false;  // 此metaData的value包含在deleteMetaDataList中，则删除metaData内容
 
-    DeleteMetaDataVisitor(NodeVisitor nv, List<ModificationProperty.MetaData> deleteMetaDataList) {
+    DeleteMetaDataVisitor(NodeVisitor nv, Set<String> deleteMetaDataNames) {
         super(nv);
-        this.deleteMetaDataList = deleteMetaDataList;
+        this.deleteMetaDataNames = deleteMetaDataNames;
     }
 
     @Override
     public void attr(String ns, String name, int resourceId, int type, Object obj) {
-        if ("name".equals(name) && !shouldDeleteNode) {
-            for (ModificationProperty.MetaData data : deleteMetaDataList) {
-                if (data.getName() != null && data.getName().equals(obj)) {
-                    shouldDeleteNode = true;
-                    break;
-                }
-            }
+        if ("name".equals(name) && !shouldDeleteNode && deleteMetaDataNames.contains(obj)) {
+            shouldDeleteNode = true;
         }
         if (!shouldDeleteNode) {
             super.attr(ns, name, resourceId, type, obj);
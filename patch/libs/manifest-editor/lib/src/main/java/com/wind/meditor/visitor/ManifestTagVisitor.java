@@ -4,8 +4,9 @@ import com.wind.meditor.property.ModificationProperty;
 import com.wind.meditor.utils.Log;
 import com.wind.meditor.utils.NodeValue;
 
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import pxb.android.axml.NodeVisitor;
 
@@ -13,7 +14,7 @@ public class ManifestTagVisitor extends ModifyAttributeVisitor {
 
     private ModificationProperty properties;
 
-    private List<String> hasIncludedUsesPermissionList = new ArrayList<>();
+    private Set<String> hasIncludedUsesPermissions = new HashSet<>();
 
     private UserPermissionTagVisitor.IUsesPermissionGetter addedPermissionGetter;
 
@@ -59,7 +60,7 @@ public class ManifestTagVisitor extends ModifyAttributeVisitor {
         if (list != null && list.size() > 0) {
             for (String permissionName : list) {
                 // permission is not added.
-                if (!hasIncludedUsesPermissionList.contains(permissionName)) {
+                if (!hasIncludedUsesPermissions.contains(permissionName)) {
                     // pass permission name to child by name space
                     child(permissionName, NodeValue.UsesPermission.TAG_NAME);
                 }
@@ -70,11 +71,7 @@ public class ManifestTagVisitor extends ModifyAttributeVisitor {
 
     private UserPermissionTagVisitor.IUsesPermissionGetter getUsesPermissionGetter() {
         if (addedPermissionGetter == null) {
-            addedPermissionGetter = permissionName -> {
-                if (!hasIncludedUsesPermissionList.contains(permissionName)) {
-                    hasIncludedUsesPermissionList.add(permissionName);
-                }
-            };
+            addedPermissionGetter = hasIncludedUsesPermissions::add;
         }
         return addedPermissionGetter;
     }
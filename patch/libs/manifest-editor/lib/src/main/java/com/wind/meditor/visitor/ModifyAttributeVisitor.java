@@ -1,16 +1,17 @@
 package com.wind.meditor.visitor;
 
 import com.wind.meditor.property.AttributeItem;
-import com.wind.meditor.utils.Utils;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import pxb.android.axml.NodeVisitor;
 
 public class ModifyAttributeVisitor extends NodeVisitor {
-    private List<AttributeItem> hasBeenAddedAttributeList = new ArrayList<>();
+    private final BitSet hasBeenAddedAttributes = new BitSet();
     private List<AttributeItem> mModifyAttributeList;
+    private final AttributeIndex mModifyAttributeIndex;
 
     // whether the tag where the attribute attached is newly added
     private boolean isNewAddedTag;
@@ -18,6 +19,7 @@ public class ModifyAttributeVisitor extends NodeVisitor {
     ModifyAttributeVisitor(NodeVisitor nv, List<AttributeItem> modifyAttributeList, boolean isNewAddedTag) {
         super(nv);
         mModifyAttributeList = modifyAttributeList;
+        mModifyAttributeIndex = new AttributeIndex(modifyAttributeList);
         this.isNewAddedTag = isNewAddedTag;
 
         if (isNewAddedTag) {
@@ -34,25 +36,16 @@ public class ModifyAttributeVisitor extends NodeVisitor {
             mModifyAttributeList = new ArrayList<>();
         }
         mModifyAttributeList.add(item);
+        mModifyAttributeIndex.add(item);
     }
 
     @Override
     public void attr(String ns, String name, int resourceId, int type, Object obj) {
         Object newObj = null;
-        if (mModifyAttributeList != null) {
-            for (AttributeItem attributeItem : mModifyAttributeList) {
-                if (attributeItem == null) {
-                    continue;
-                }
-
-                if ((Utils.isEqual(ns, attributeItem.getNamespace())
-                        && Utils.isEqual(name, attributeItem.getName()))
-                        || (resourceId >= 0 && resourceId == attributeItem.getResourceId())) {
-                    hasBeenAddedAttributeList.add(attributeItem);
-                    newObj = attributeItem.getValue();
-                    break;
-                }
-            }
+        int i = mModifyAttributeIndex.find(ns, name, resourceId);
+        if (i >= 0) {
+            hasBeenAddedAttributes.set(mModifyAttributeIndex.first(i));
+            newObj = mModifyAttributeIndex.get(i).getValue();
         }
 
         if (newObj == null) {
@@ -71,15 +64,14 @@ public class ModifyAttributeVisitor extends NodeVisitor {
     }
 
     private void modifyAttr() {
-        if (mModifyAttributeList != null) {
-            for (AttributeItem attributeItem : mModifyAttributeList) {
-                if (!hasBeenAddedAttributeList.contains(attributeItem)) {
-                    super.attr(attributeItem.getNamespace(),
-                            attributeItem.getName(),
-                            attributeItem.getResourceId(),
-                            attributeItem.getType(),
-                            attributeItem.getValue());
-                }
+        for (int i = 0; i < mModifyAttributeIndex.size(); i++) {
+            AttributeItem attributeItem = mModifyAttributeIndex.get(i);
+            if (attributeItem != null && !hasBeenAddedAttributes.get(mModifyAttributeIndex.first(i))) {
+                super.attr(attributeItem.getNamespace(),
+                        attributeItem.getName(),
+                        attributeItem.getResourceId(),
+                        attributeItem.getType(),
+                        attributeItem.getValue());
             }
         }
     }
@@ -12,7 +12,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -24,7 +24,7 @@ import javax.xml.parsers.ParserConfigurationException;
  */
 public class ResourceIdXmlReader {
 
-    private static final Map<String, Integer> attrCachedMap = new HashMap<>();
+    private static final Map<String, Integer> attrCachedMap = new ConcurrentHashMap<>();
 
     public static int parseIdFromXml(String name) {
         String filePath = "assets/public.xml";
@@ -15,7 +15,6 @@
  */
 package pxb.android;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -28,37 +27,10 @@ public class StringItems extends ArrayList<StringItem> {
 
 	
     public static String[] read(ByteBuffer in) throws IOException {
-        int trunkOffset = in.position() - 8;
-        int stringCount = in.getInt();
-        int styleOffsetCount = in.getInt();
-        int flags = in.getInt();
-        int stringDataOffset = in.getInt();
-        int stylesOffset = in.getInt();
-        int offsets[] = new int[stringCount];
-        String strings[] = new String[stringCount];
-        for (int i = 0; i < stringCount; i++) {
-            offsets[i] = in.getInt();
-        }
-
-        int base = trunkOffset + stringDataOffset;
-        for (int i = 0; i < offsets.length; i++) {
-            in.position(base + offsets[i]);
-            String s;
-
-            if (0 != (flags & UTF8_FLAG)) {
-                u8length(in); // ignored
-                int u8len = u8length(in);
-                int start = in.position();
-                int blength = u8len;
-                while (in.get(start + blength) != 0) {
-                    blength++;
-                }
-                s = new String(in.array(), start, blength, "UTF-8");
-            } else {
-                int length = u16length(in);
-                s = new String(in.array(), in.position(), length * 2, "UTF-16LE");
-            }
-            strings[i] = s;
+        StringPool pool = new StringPool(in);
+        String strings[] = new String[pool.size()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = pool.get(i);
         }
         return strings;
     }
@@ -79,22 +51,23 @@ public class StringItems extends ArrayList<StringItem> {
 		return len;
 	}
 
-	byte[] stringData;
+	private int stringDataSize;
 
 	public int getSize() {
-		return 5 * 4 + this.size() * 4 + stringData.length + 0;// TODO
+		return 5 * 4 + this.size() * 4 + stringDataSize + 0;// TODO
 	}
 
+	/**
+	 * Lays the strings out, they are only encoded by {@link #write(ByteBuffer)}.
+	 */
 	public void prepare() throws IOException {
 		for (StringItem s : this) {
 			if (s.data.length() > 0x7FFF) {
 				useUTF8 = false;
 			}
 		}
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		int i = 0;
 		int offset = 0;
-		baos.reset();
 		Map<String, Integer> map = new HashMap<String, Integer>();
 		for (StringItem item : this) {
 			item.index = i++;
@@ -105,45 +78,113 @@ public class StringItems extends ArrayList<StringItem> {
 			} else {
 				item.dataOffset = offset;
 				map.put(stringData, offset);
-				if (useUTF8) {
-					int length = stringData.length();
-					byte[] data = stringData.getBytes("UTF-8");
-					int u8lenght = data.length;
+				offset += size(stringData, useUTF8);
+			}
+		}
+		stringDataSize = offset;
+	}
 
-					if (length > 0x7F) {
-						offset++;
-						baos.write((length >> 8) | 0x80);
-					}
-					baos.write(length);
+	/**
+	 * The size of a string as it is stored in the pool, with its lengths and its terminator.
+	 */
+	public static int size(String stringData, boolean useUTF8) {
+		int length = stringData.length();
+		if (useUTF8) {
+			int u8lenght = utf8Length(stringData);
+			return (length > 0x7F ? 2 : 1) + (u8lenght > 0x7F ? 2 : 1) + u8lenght + 1;
+		}
+		return (length > 0x7FFF ? 2 : 0) + 2 + length * 2 + 2;
+	}
 
-					if (u8lenght > 0x7F) {
-						offset++;
-						baos.write((u8lenght >> 8) | 0x80);
-					}
-					baos.write(u8lenght);
-					baos.write(data);
-					baos.write(0);
-					offset += 3 + u8lenght;
+	/**
+	 * Writes a string as it is stored in the pool, encoding it in place.
+	 * Unpaired surrogates are replaced like {@link String#getBytes} does.
+	 */
+	public static void write(ByteBuffer out, String stringData, boolean useUTF8) {
+		int length = stringData.length();
+		if (useUTF8) {
+			int u8lenght = utf8Length(stringData);
+			if (length > 0x7F) {
+				out.put((byte) ((length >> 8) | 0x80));
+			}
+			out.put((byte) length);
+			if (u8lenght > 0x7F) {
+				out.put((byte) ((u8lenght >> 8) | 0x80));
+			}
+			out.put((byte) u8lenght);
+			for (int i = 0; i < length; i++) {
+				char c = stringData.charAt(i);
+				if (c < 0x80) {
+					out.put((byte) c);
+				} else if (c < 0x800) {
+					out.put((byte) (0xC0 | (c >> 6)));
+					out.put((byte) (0x80 | (c & 0x3F)));
+				} else if (!Character.isSurrogate(c)) {
+					out.put((byte) (0xE0 | (c >> 12)));
+					out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+					out.put((byte) (0x80 | (c & 0x3F)));
+				} else if (isPaired(stringData, i)) {
+					int cp = Character.toCodePoint(c, stringData.charAt(++i));
+					out.put((byte) (0xF0 | (cp >> 18)));
+					out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+					out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+					out.put((byte) (0x80 | (cp & 0x3F)));
 				} else {
-					int length = stringData.length();
-					byte[] data = stringData.getBytes("UTF-16LE");
-					if (length > 0x7FFF) {
-						int x = (length >> 16) | 0x8000;
-						baos.write(x);
-						baos.write(x >> 8);
-						offset += 2;
+					out.put((byte) '?');
+				}
+			}
+			out.put((byte) 0);
+		} else {
+			if (length > 0x7FFF) {
+				int x = (length >> 16) | 0x8000;
+				out.put((byte) x);
+				out.put((byte) (x >> 8));
+			}
+			out.put((byte) length);
+			out.put((byte) (length >> 8));
+			for (int i = 0; i < length; i++) {
+				char c = stringData.charAt(i);
+				if (Character.isSurrogate(c)) {
+					if (isPaired(stringData, i)) {
+						out.put((byte) c);
+						out.put((byte) (c >> 8));
+						c = stringData.charAt(++i);
+					} else {
+						c = '\uFFFD';
 					}
-					baos.write(length);
-					baos.write(length >> 8);
-					baos.write(data);
-					baos.write(0);
-					baos.write(0);
-					offset += 4 + data.length;
 				}
+				out.put((byte) c);
+				out.put((byte) (c >> 8));
 			}
+			out.put((byte) 0);
+			out.put((byte) 0);
 		}
-		// TODO
-		stringData = baos.toByteArray();
+	}
+
+	private static int utf8Length(String s) {
+		int u8lenght = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				u8lenght++;
+			} else if (c < 0x800) {
+				u8lenght += 2;
+			} else if (!Character.isSurrogate(c)) {
+				u8lenght += 3;
+			} else if (isPaired(s, i)) {
+				u8lenght += 4;
+				i++;
+			} else {
+				u8lenght++;
+			}
+		}
+		return u8lenght;
+	}
+
+	// a high surrogate followed by a low one
+	private static boolean isPaired(String s, int i) {
+		return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+				&& Character.isLowSurrogate(s.charAt(i + 1));
 	}
 
 	private boolean useUTF8 = true;
@@ -157,7 +198,13 @@ public class StringItems extends ArrayList<StringItem> {
 		for (StringItem item : this) {
 			out.putInt(item.dataOffset);
 		}
-		out.put(stringData);
+		// duplicates point back at the first of them
+		int start = out.position();
+		for (StringItem item : this) {
+			if (out.position() - start == item.dataOffset) {
+				write(out, item.data, useUTF8);
+			}
+		}
 		// TODO
 	}
 }
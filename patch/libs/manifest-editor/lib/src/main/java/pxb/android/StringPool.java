@@ -0,0 +1,111 @@
+package pxb.android;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The strings of a pool chunk, decoded when first asked for and kept.
+ * {@link #matches} compares a string with an entry without decoding it, which is all most
+ * lookups of tag and attribute names need.
+ */
+public class StringPool {
+    private static final int UTF8_FLAG = 0x00000100;
+
+    private final ByteBuffer in;
+    private final int count;
+    private final boolean utf8;
+    private final int offsets;
+    private final int base;
+    private final String[] strings;
+
+    /**
+     * Reads the pool header at the position of the buffer, just after the chunk header, and
+     * leaves the position after the string offsets like {@link StringItems#read}.
+     */
+    public StringPool(ByteBuffer in) {
+        int trunkOffset = in.position() - 8;
+        this.in = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        count = this.in.getInt();
+        this.in.getInt(); // styles are not decoded
+        utf8 = (this.in.getInt() & UTF8_FLAG) != 0;
+        base = trunkOffset + this.in.getInt();
+        this.in.getInt();
+        offsets = this.in.position();
+        strings = new String[count];
+        in.position(offsets + 4 * count);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String get(int i) {
+        String s = strings[i];
+        if (s == null) {
+            s = strings[i] = decode(i);
+        }
+        return s;
+    }
+
+    /**
+     * Whether the entry is the given string, compared on the encoded bytes for ascii strings.
+     */
+    public boolean matches(int i, String s) {
+        String decoded = strings[i];
+        if (decoded != null) {
+            return decoded.equals(s);
+        }
+        in.position(base + in.getInt(offsets + 4 * i));
+        int n = s.length();
+        if (utf8) {
+            // entries of another length are told apart by their char count alone
+            if (StringItems.u8length(in) != n) {
+                return false;
+            }
+            StringItems.u8length(in); // byte length, a multibyte char tells it apart too
+            int start = in.position();
+            if (start + n >= in.limit()) {
+                return get(i).equals(s);
+            }
+            for (int k = 0; k < n; k++) {
+                char c = s.charAt(k);
+                if (c == 0 || c >= 0x80) {
+                    return get(i).equals(s);
+                }
+                if (in.get(start + k) != c) {
+                    return false;
+                }
+            }
+            return in.get(start + n) == 0;
+        } else {
+            if (StringItems.u16length(in) != n) {
+                return false;
+            }
+            int start = in.position();
+            for (int k = 0; k < n; k++) {
+                if (in.getChar(start + 2 * k) != s.charAt(k)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private String decode(int i) {
+        in.position(base + in.getInt(offsets + 4 * i));
+        if (utf8) {
+            StringItems.u8length(in); // ignored
+            int u8len = StringItems.u8length(in);
+            int start = in.position();
+            int blength = u8len;
+            while (in.get(start + blength) != 0) {
+                blength++;
+            }
+            return new String(in.array(), in.arrayOffset() + start, blength, StandardCharsets.UTF_8);
+        } else {
+            int length = StringItems.u16length(in);
+            return new String(in.array(), in.arrayOffset() + in.position(), length * 2, StandardCharsets.UTF_16LE);
+        }
+    }
+}
@@ -24,7 +24,7 @@ import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 
 import pxb.android.ResConst;
-import pxb.android.StringItems;
+import pxb.android.StringPool;
 
 /**
  * a class to read android axml
@@ -60,9 +60,14 @@ public class AxmlParser implements ResConst {
 
     private int prefixIdx;
 
-    private int[] resourceIds;
+    int[] resourceIds;
 
-    private String[] strings;
+    StringPool strings;
+
+    // bounds of the chunk of the last event, of the string pool and of the resource map
+    int chunkStart, chunkEnd;
+    int poolStart = -1, poolEnd;
+    int resourceMapStart = -1, resourceMapEnd;
 
     private int styleAttribute;
 
@@ -87,19 +92,26 @@ public class AxmlParser implements ResConst {
 
     public String getAttrName(int i) {
         int idx = attrs.get(i * 5 + 1);
-        return strings[idx];
+        return strings.get(idx);
+
+    }
 
+    /**
+     * Whether the name of the attribute is the given one, without decoding it.
+     */
+    public boolean isAttrName(int i, String name) {
+        return strings.matches(attrs.get(i * 5 + 1), name);
     }
 
     public String getAttrNs(int i) {
         int idx = attrs.get(i * 5 + 0);
-        return idx >= 0 ? strings[idx] : null;
+        return idx >= 0 ? strings.get(idx) : null;
     }
 
     String getAttrRawString(int i) {
         int idx = attrs.get(i * 5 + 2);
         if (idx >= 0) {
-            return strings[idx];
+            return strings.get(idx);
         }
         return null;
     }
@@ -131,7 +143,7 @@ public class AxmlParser implements ResConst {
 
         switch (getAttrType(i)) {
         case TYPE_STRING:
-            return strings[v];
+            return strings.get(v);
         case TYPE_INT_BOOLEAN:
             return v != 0;
         default:
@@ -144,19 +156,26 @@ public class AxmlParser implements ResConst {
     }
 
     public String getName() {
-        return strings[nameIdx];
+        return strings.get(nameIdx);
+    }
+
+    /**
+     * Whether the name of the element is the given one, without decoding it.
+     */
+    public boolean isName(String name) {
+        return strings.matches(nameIdx, name);
     }
 
     public String getNamespacePrefix() {
-        return strings[prefixIdx];
+        return strings.get(prefixIdx);
     }
 
     public String getNamespaceUri() {
-        return nsIdx >= 0 ? strings[nsIdx] : null;
+        return nsIdx >= 0 ? strings.get(nsIdx) : null;
     }
 
     public String getText() {
-        return strings[textIdx];
+        return strings.get(textIdx);
     }
 
     public int next() throws IOException {
@@ -242,15 +261,24 @@ public class AxmlParser implements ResConst {
                 event = END_NS;
                 break;
             case RES_STRING_POOL_TYPE:
-                strings = StringItems.read(in);
+                // a rewound parser keeps what it decoded
+                if (strings == null) {
+                    strings = new StringPool(in);
+                }
+                poolStart = p;
+                poolEnd = p + size;
                 in.position(p + size);
                 continue;
             case RES_XML_RESOURCE_MAP_TYPE:
-                int count = size / 4 - 2;
-                resourceIds = new int[count];
-                for (int i = 0; i < count; i++) {
-                    resourceIds[i] = in.getInt();
+                if (resourceIds == null) {
+                    int count = size / 4 - 2;
+                    resourceIds = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        resourceIds[i] = in.getInt();
+                    }
                 }
+                resourceMapStart = p;
+                resourceMapEnd = p + size;
                 in.position(p + size);
                 continue;
             case RES_XML_CDATA_TYPE:
@@ -267,8 +295,18 @@ public class AxmlParser implements ResConst {
                 throw new RuntimeException();
             }
             in.position(p + size);
+            chunkStart = p;
+            chunkEnd = p + size;
             return event;
         }
         return END_FILE;
     }
+
+    /**
+     * Goes back to the start of the document, keeping the strings already decoded.
+     */
+    void rewind() {
+        in.position(0);
+        fileSize = -1;
+    }
 }
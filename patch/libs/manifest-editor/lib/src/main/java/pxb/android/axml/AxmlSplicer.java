@@ -0,0 +1,876 @@
+package pxb.android.axml;
+
+import static pxb.android.ResConst.RES_XML_CDATA_TYPE;
+import static pxb.android.ResConst.RES_XML_END_ELEMENT_TYPE;
+import static pxb.android.ResConst.RES_XML_END_NAMESPACE_TYPE;
+import static pxb.android.ResConst.RES_XML_RESOURCE_MAP_TYPE;
+import static pxb.android.ResConst.RES_XML_START_ELEMENT_TYPE;
+import static pxb.android.ResConst.RES_XML_START_NAMESPACE_TYPE;
+import static pxb.android.axml.AxmlParser.END_FILE;
+import static pxb.android.axml.AxmlParser.END_NS;
+import static pxb.android.axml.AxmlParser.END_TAG;
+import static pxb.android.axml.AxmlParser.START_FILE;
+import static pxb.android.axml.AxmlParser.START_NS;
+import static pxb.android.axml.AxmlParser.START_TAG;
+import static pxb.android.axml.AxmlParser.TEXT;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Stack;
+
+import pxb.android.StringItems;
+import pxb.android.StringPool;
+
+/**
+ * Edits an android axml by splicing it: a reader and a writer in one.
+ * The visitors passed to {@link #accept} get the document as from {@link AxmlReader} and write
+ * to this as to {@link AxmlWriter}, but the elements they pass on untouched are copied from the
+ * input. Only start tags that changed and new elements are encoded. New strings are added to the
+ * pool as it is, attribute names with a resource id after the names of the resource map and the
+ * others at the end, and the string indices of the copied chunks are moved past the inserted names.
+ * Namespaces are kept as the input declares them.
+ *
+ * <pre>
+ * AxmlSplicer splicer = new AxmlSplicer(data);
+ * splicer.accept(new EditingVisitor(splicer));
+ * byte[] edited = splicer.toByteArray();
+ * </pre>
+ */
+public class AxmlSplicer extends AxmlVisitor {
+
+    private static final int UTF8_FLAG = 0x00000100;
+    private static final int SORTED_FLAG = 0x00000001;
+
+    // the order of AxmlWriter.ATTR_CMP
+    private static final Comparator<Attr> ATTR_CMP = new Comparator<Attr>() {
+
+        @Override
+        public int compare(Attr a, Attr b) {
+            int x = a.resourceId - b.resourceId;
+            if (x == 0) {
+                x = a.name.compareTo(b.name);
+                if (x == 0) {
+                    if (a.ns == null) {
+                        x = b.ns == null ? 0 : -1;
+                    } else {
+                        x = b.ns == null ? 1 : a.ns.compareTo(b.ns);
+                    }
+                }
+            }
+            return x;
+        }
+    };
+
+    // chunks copied as they are
+    private static class Slice {
+        final int start;
+        final int end;
+
+        Slice(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Text {
+        // bounds of the chunk in the input, -1 for a new text
+        final int start;
+        final int end;
+        final int line;
+        final String value;
+        int index;
+
+        Text(int start, int end, int line, String value) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.value = value;
+        }
+    }
+
+    private static class Attr {
+        // index in the start tag of the input, -1 for a new attribute
+        final int original;
+        String ns;
+        String name;
+        int resourceId;
+        int type;
+        Object value;
+
+        int nsIdx;
+        int nameIdx;
+        int rawIdx;
+        int typedValue;
+        int data;
+        boolean stringData;
+        int role;
+
+        Attr(int original) {
+            this.original = original;
+        }
+    }
+
+    private class Node extends NodeVisitor {
+        // bounds of the start tag, the end tag and the element in the input, -1 for a new element
+        final int start;
+        int startEnd;
+        int endStart;
+        int end;
+        final String ns;
+        final String name;
+        final boolean renamed;
+        int line;
+        int originalAttrs;
+        int originalChildren;
+        // attributes passed on unchanged and in order, while attrs is null
+        int keptAttrs;
+        List<Attr> attrs;
+        List<Object> children;
+
+        boolean copied;
+        boolean startCopied;
+        int nsIdx;
+        int nameIdx;
+
+        Node(int start, String ns, String name, boolean renamed) {
+            this.start = start;
+            this.ns = ns;
+            this.name = name;
+            this.renamed = renamed;
+        }
+
+        @Override
+        public void attr(String ns, String name, int resourceId, int type, Object obj) {
+            if (name == null) {
+                throw new RuntimeException("name can't be null");
+            }
+            int original = -1;
+            if (this == reading && pendingAttr >= 0 && obj == pendingValue && type == parser.getAttrType(pendingAttr)
+                    && resourceId == parser.getAttrResId(pendingAttr) && name.equals(parser.getAttrName(pendingAttr))
+                    && same(ns, parser.getAttrNs(pendingAttr))) {
+                original = pendingAttr;
+                pendingAttr = -1;
+            }
+            if (attrs == null) {
+                if (original == keptAttrs) {
+                    keptAttrs++;
+                    return;
+                }
+                attrs = new ArrayList<Attr>(keptAttrs + 1);
+                for (int i = 0; i < keptAttrs; i++) {
+                    attrs.add(new Attr(i));
+                }
+            }
+            Attr a = new Attr(original);
+            a.ns = ns;
+            a.name = name;
+            a.resourceId = resourceId;
+            a.type = type;
+            a.value = obj;
+            attrs.add(a);
+        }
+
+        @Override
+        public NodeVisitor child(String ns, String name) {
+            Node child = node(ns, name);
+            children().add(child);
+            return child;
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void line(int ln) {
+            this.line = ln;
+        }
+
+        @Override
+        public void text(int ln, String value) {
+            if (this == reading && pendingText >= 0 && value == pendingTextValue) {
+                children().add(new Text(pendingText, parser.chunkEnd, ln, value));
+                pendingText = -1;
+            } else {
+                children().add(new Text(-1, -1, ln, value));
+            }
+        }
+
+        List<Object> children() {
+            if (children == null) {
+                children = new ArrayList<Object>();
+            }
+            return children;
+        }
+    }
+
+    private final byte[] data;
+    private final ByteBuffer in;
+    private final AxmlParser parser;
+
+    // what is left at the top level: namespace chunks and root elements
+    private final List<Object> top = new ArrayList<Object>();
+
+    // the element, attribute or text of the input being passed to the visitors
+    private int pendingStart = -1;
+    private String pendingNs;
+    private String pendingName;
+    private Node claimed;
+    private Node reading;
+    private int pendingAttr = -1;
+    private Object pendingValue;
+    private int pendingText = -1;
+    private String pendingTextValue;
+
+    // strings added to the pool, with the resource id of attribute names or -1
+    private final List<String> added = new ArrayList<String>();
+    private final List<Integer> addedIds = new ArrayList<Integer>();
+    private int[] addedIndex;
+    private int[] addedOffsets;
+    private int addedSize;
+    private int insertAt;
+    private int inserted;
+
+    // the layout of the output, -1 until it is made
+    private int size = -1;
+    private int poolSize;
+    private int mapSize;
+
+    public AxmlSplicer(byte[] data) {
+        this.data = data;
+        this.in = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        this.parser = new AxmlParser(data);
+    }
+
+    /**
+     * Passes the document to the visitor, which writes what should be kept to this.
+     * Each call starts the edit over, so a first pass can only collect what it needs.
+     */
+    public void accept(AxmlVisitor av) throws IOException {
+        parser.rewind();
+        top.clear();
+        size = -1;
+        Stack<NodeVisitor> nvs = new Stack<NodeVisitor>();
+        // the elements of the input being read, null for the ones dropped
+        Stack<Node> elements = new Stack<Node>();
+        NodeVisitor tos = av;
+        while (true) {
+            int type = parser.next();
+            Node parent = elements.isEmpty() ? null : elements.peek();
+            switch (type) {
+            case START_FILE:
+                break;
+            case START_TAG: {
+                if (parent != null) {
+                    parent.originalChildren++;
+                }
+                nvs.push(tos);
+                pendingStart = parser.chunkStart;
+                pendingNs = parser.getNamespaceUri();
+                pendingName = parser.getName();
+                tos = tos.child(pendingNs, pendingName);
+                pendingStart = -1;
+                Node node = claimed;
+                claimed = null;
+                if (node != null) {
+                    node.startEnd = parser.chunkEnd;
+                    node.originalAttrs = parser.getAttrCount();
+                }
+                elements.push(node);
+                if (tos != null) {
+                    if (tos != AxmlReader.EMPTY_VISITOR) {
+                        tos.line(parser.getLineNumber());
+                        reading = node;
+                        for (int i = 0; i < parser.getAttrCount(); i++) {
+                            pendingAttr = i;
+                            pendingValue = parser.getAttrValue(i);
+                            tos.attr(parser.getAttrNs(i), parser.getAttrName(i), parser.getAttrResId(i),
+                                    parser.getAttrType(i), pendingValue);
+                        }
+                        pendingAttr = -1;
+                        pendingValue = null;
+                        reading = null;
+                    }
+                } else {
+                    tos = AxmlReader.EMPTY_VISITOR;
+                }
+                break;
+            }
+            case END_TAG: {
+                tos.end();
+                tos = nvs.pop();
+                Node node = elements.pop();
+                if (node != null) {
+                    node.endStart = parser.chunkStart;
+                    node.end = parser.chunkEnd;
+                }
+                break;
+            }
+            case START_NS:
+            case END_NS:
+                if (elements.isEmpty()) {
+                    top.add(new Slice(parser.chunkStart, parser.chunkEnd));
+                } else if (parent != null) {
+                    parent.children().add(new Slice(parser.chunkStart, parser.chunkEnd));
+                }
+                if (type == START_NS) {
+                    av.ns(parser.getNamespacePrefix(), parser.getNamespaceUri(), parser.getLineNumber());
+                }
+                break;
+            case TEXT:
+                if (elements.isEmpty()) {
+                    top.add(new Slice(parser.chunkStart, parser.chunkEnd));
+                } else if (parent != null) {
+                    parent.originalChildren++;
+                }
+                reading = parent;
+                pendingText = parser.chunkStart;
+                pendingTextValue = parser.getText();
+                tos.text(parser.getLineNumber(), pendingTextValue);
+                pendingText = -1;
+                pendingTextValue = null;
+                reading = null;
+                break;
+            case END_FILE:
+                return;
+            default:
+                System.err.println("AxmlSplicer: Unsupported tag: " + type);
+            }
+        }
+    }
+
+    @Override
+    public NodeVisitor child(String ns, String name) {
+        Node node = node(ns, name);
+        top.add(node);
+        return node;
+    }
+
+    @Override
+    public void end() {
+    }
+
+    // the first element made while an element of the input is passed on stands for it
+    private Node node(String ns, String name) {
+        if (pendingStart < 0) {
+            return new Node(-1, ns, name, false);
+        }
+        Node node = new Node(pendingStart, ns, name, !same(ns, pendingNs) || !same(name, pendingName));
+        pendingStart = -1;
+        claimed = node;
+        return node;
+    }
+
+    /**
+     * The size of the edited document in bytes, which is laid out on the first call after
+     * {@link #accept}.
+     */
+    public int size() throws IOException {
+        if (size >= 0) {
+            return size;
+        }
+        int headerSize = in.getShort(2) & 0xFFFF;
+        int pool = parser.poolStart;
+        int map = parser.resourceMapStart;
+        if (pool != headerSize || (map >= 0 && map != parser.poolEnd)) {
+            throw new IOException("string pool and resource map must come first");
+        }
+        int stringCount = in.getInt(pool + 8);
+        int styleCount = in.getInt(pool + 12);
+        boolean utf8 = (in.getInt(pool + 16) & UTF8_FLAG) != 0;
+        int stylesStart = in.getInt(pool + 24);
+        int oldPoolSize = parser.poolEnd - pool;
+        int stringDataSize = (styleCount > 0 ? stylesStart : oldPoolSize) - in.getInt(pool + 20);
+        int mapLength = parser.resourceIds == null ? 0 : parser.resourceIds.length;
+        insertAt = Math.min(mapLength, stringCount);
+
+        added.clear();
+        addedIds.clear();
+        int bodySize = 0;
+        for (Object o : top) {
+            bodySize += o instanceof Node ? prepare((Node) o) : ((Slice) o).end - ((Slice) o).start;
+        }
+
+        inserted = 0;
+        for (int id : addedIds) {
+            if (id != -1) {
+                inserted++;
+            }
+        }
+        if (inserted > 0 && styleCount > insertAt) {
+            throw new IOException("can not insert strings before styled ones");
+        }
+        if (inserted > 0) {
+            // span names are string indices too, make sure every span list can be walked
+            for (int i = 0; i < styleCount; i++) {
+                int p = pool + stylesStart + in.getInt(pool + 28 + 4 * (stringCount + i));
+                while (true) {
+                    if (p < pool + stylesStart || p + 4 > parser.poolEnd) {
+                        throw new IOException("style span out of the string pool");
+                    }
+                    if (in.getInt(p) == -1) {
+                        break;
+                    }
+                    p += 12;
+                }
+            }
+        }
+        addedIndex = new int[added.size()];
+        addedOffsets = new int[added.size()];
+        addedSize = 0;
+        for (int i = 0, resource = 0, other = 0; i < added.size(); i++) {
+            String s = added.get(i);
+            if (utf8 && s.length() > 0x7FFF) {
+                throw new IOException("string too long for an utf-8 pool");
+            }
+            addedIndex[i] = addedIds.get(i) != -1 ? insertAt + resource++ : stringCount + inserted + other++;
+            addedOffsets[i] = stringDataSize + addedSize;
+            addedSize += StringItems.size(s, utf8);
+        }
+
+        poolSize = oldPoolSize;
+        if (!added.isEmpty()) {
+            poolSize = 28 + 4 * (stringCount + added.size() + styleCount)
+                    + ((stringDataSize + addedSize + 3) & ~3) + (styleCount > 0 ? oldPoolSize - stylesStart : 0);
+        }
+        mapSize = map >= 0 ? parser.resourceMapEnd - map : 0;
+        if (inserted > 0) {
+            mapSize = 8 + 4 * (mapLength + inserted);
+        }
+        size = headerSize + poolSize + mapSize + bodySize;
+        return size;
+    }
+
+    public byte[] toByteArray() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(size());
+        writeTo(out);
+        return out.array();
+    }
+
+    /**
+     * Writes the edited document at the position of the buffer, which must have {@link #size()}
+     * bytes remaining. The buffer is switched to little endian.
+     */
+    public void writeTo(ByteBuffer out) throws IOException {
+        int size = size();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        int headerSize = in.getShort(2) & 0xFFFF;
+        out.putInt(in.getInt(0));
+        out.putInt(size);
+        out.put(data, 8, headerSize - 8);
+
+        // string pool
+        int pool = parser.poolStart;
+        if (added.isEmpty()) {
+            out.put(data, pool, poolSize);
+        } else {
+            int stringCount = in.getInt(pool + 8);
+            int styleCount = in.getInt(pool + 12);
+            int flags = in.getInt(pool + 16);
+            int stringsStart = in.getInt(pool + 20);
+            int stylesStart = in.getInt(pool + 24);
+            int oldPoolSize = parser.poolEnd - pool;
+            int stringDataSize = (styleCount > 0 ? stylesStart : oldPoolSize) - stringsStart;
+            int newStringsStart = 28 + 4 * (stringCount + added.size() + styleCount);
+            int paddedDataSize = (stringDataSize + addedSize + 3) & ~3;
+            out.putInt(in.getInt(pool));
+            out.putInt(poolSize);
+            out.putInt(stringCount + added.size());
+            out.putInt(styleCount);
+            out.putInt(flags & ~SORTED_FLAG);
+            out.putInt(newStringsStart);
+            out.putInt(styleCount > 0 ? newStringsStart + paddedDataSize : 0);
+            out.put(data, pool + 28, 4 * insertAt);
+            putAddedOffsets(out, true);
+            out.put(data, pool + 28 + 4 * insertAt, 4 * (stringCount - insertAt));
+            putAddedOffsets(out, false);
+            out.put(data, pool + 28 + 4 * stringCount, 4 * styleCount);
+            out.put(data, pool + stringsStart, stringDataSize);
+            for (String s : added) {
+                StringItems.write(out, s, (flags & UTF8_FLAG) != 0);
+            }
+            for (int i = stringDataSize + addedSize; i < paddedDataSize; i++) {
+                out.put((byte) 0);
+            }
+            if (styleCount > 0) {
+                int styles = out.position();
+                out.put(data, pool + stylesStart, oldPoolSize - stylesStart);
+                if (inserted > 0) {
+                    for (int i = 0; i < styleCount; i++) {
+                        int p = styles + in.getInt(pool + 28 + 4 * (stringCount + i));
+                        for (; out.getInt(p) != -1; p += 12) {
+                            shift(out, p);
+                        }
+                    }
+                }
+            }
+        }
+
+        // resource map
+        if (inserted > 0) {
+            int mapLength = parser.resourceIds == null ? 0 : parser.resourceIds.length;
+            out.putInt(RES_XML_RESOURCE_MAP_TYPE | (0x0008 << 16));
+            out.putInt(mapSize);
+            for (int i = 0; i < insertAt; i++) {
+                out.putInt(parser.resourceIds[i]);
+            }
+            for (int id : addedIds) {
+                if (id != -1) {
+                    out.putInt(id);
+                }
+            }
+            for (int i = insertAt; i < mapLength; i++) {
+                out.putInt(parser.resourceIds[i]);
+            }
+        } else if (mapSize > 0) {
+            out.put(data, parser.resourceMapStart, mapSize);
+        }
+
+        for (Object o : top) {
+            if (o instanceof Node) {
+                write(out, (Node) o);
+            } else {
+                copy(out, ((Slice) o).start, ((Slice) o).end);
+            }
+        }
+    }
+
+    private void putAddedOffsets(ByteBuffer out, boolean resource) {
+        for (int i = 0; i < added.size(); i++) {
+            if ((addedIds.get(i) != -1) == resource) {
+                out.putInt(addedOffsets[i]);
+            }
+        }
+    }
+
+    // resolves the strings of what is encoded again and returns the size of the element
+    private int prepare(Node node) {
+        boolean copied = node.start >= 0 && !node.renamed && node.attrs == null
+                && node.keptAttrs == node.originalAttrs;
+        node.startCopied = copied;
+        int size = 0;
+        int originals = 0;
+        if (node.children != null) {
+            for (Object o : node.children) {
+                if (o instanceof Node) {
+                    Node child = (Node) o;
+                    size += prepare(child);
+                    copied &= child.copied;
+                    if (child.start >= node.startEnd && child.end <= node.endStart) {
+                        originals++;
+                    }
+                } else if (o instanceof Text) {
+                    Text text = (Text) o;
+                    if (text.start >= 0) {
+                        size += text.end - text.start;
+                        originals++;
+                    } else {
+                        text.index = lookup(text.value);
+                        size += 28;
+                        copied = false;
+                    }
+                } else {
+                    size += ((Slice) o).end - ((Slice) o).start;
+                }
+            }
+        }
+        node.copied = copied && originals == node.originalChildren;
+        if (node.copied) {
+            return node.end - node.start;
+        }
+
+        if (node.startCopied) {
+            size += node.startEnd - node.start;
+        } else {
+            size += 36 + 20 * prepareStart(node);
+        }
+        size += node.start >= 0 && !node.renamed ? node.end - node.endStart : 24;
+        return size;
+    }
+
+    private int prepareStart(Node node) {
+        if (node.start < 0 || node.renamed) {
+            node.nsIdx = lookup(node.ns);
+            node.nameIdx = lookup(node.name);
+        } else {
+            node.nsIdx = in.getInt(node.start + 16);
+            node.nameIdx = in.getInt(node.start + 20);
+        }
+        if (node.attrs == null) {
+            node.attrs = new ArrayList<Attr>(node.keptAttrs);
+            for (int i = 0; i < node.keptAttrs; i++) {
+                node.attrs.add(new Attr(i));
+            }
+        }
+        for (Attr a : node.attrs) {
+            if (a.original >= 0) {
+                prepareOriginal(node, a);
+            } else {
+                prepareNew(a);
+            }
+        }
+        // sorted and without duplicates like the TreeSet of AxmlWriter
+        node.attrs.sort(ATTR_CMP);
+        for (int i = node.attrs.size() - 1; i > 0; i--) {
+            if (ATTR_CMP.compare(node.attrs.get(i - 1), node.attrs.get(i)) == 0) {
+                node.attrs.remove(i);
+            }
+        }
+        return node.attrs.size();
+    }
+
+    private void prepareOriginal(Node node, Attr a) {
+        int p = node.start + 36 + 20 * a.original;
+        a.nsIdx = in.getInt(p);
+        a.nameIdx = in.getInt(p + 4);
+        a.rawIdx = in.getInt(p + 8);
+        a.typedValue = in.getInt(p + 12);
+        a.data = in.getInt(p + 16);
+        a.stringData = a.typedValue >>> 24 == TYPE_STRING;
+        a.ns = a.nsIdx >= 0 ? parser.strings.get(a.nsIdx) : null;
+        a.name = parser.strings.get(a.nameIdx);
+        a.resourceId = parser.resourceIds != null && a.nameIdx >= 0 && a.nameIdx < parser.resourceIds.length
+                ? parser.resourceIds[a.nameIdx] : -1;
+        if ((in.getShort(node.start + 30) & 0xFFFF) - 1 == a.original) {
+            a.role = ValueWrapper.ID;
+        } else if ((in.getShort(node.start + 32) & 0xFFFF) - 1 == a.original) {
+            a.role = ValueWrapper.CLASS;
+        } else if ((in.getShort(node.start + 34) & 0xFFFF) - 1 == a.original) {
+            a.role = ValueWrapper.STYLE;
+        }
+    }
+
+    // encodes the value as AxmlWriter does
+    private void prepareNew(Attr a) {
+        a.nsIdx = lookup(a.ns);
+        a.nameIdx = lookupName(a.name, a.resourceId);
+        a.typedValue = (a.type << 24) | 0x000008;
+        a.rawIdx = -1;
+        Object v = a.value;
+        if (v instanceof ValueWrapper) {
+            ValueWrapper valueWrapper = (ValueWrapper) v;
+            if (valueWrapper.raw != null) {
+                a.rawIdx = lookup(valueWrapper.raw);
+            }
+            a.data = valueWrapper.ref;
+            a.role = valueWrapper.type;
+        } else if (a.type == TYPE_STRING) {
+            a.rawIdx = lookup((String) v);
+            a.data = a.rawIdx;
+            a.stringData = true;
+        } else if (v instanceof Boolean) {
+            a.data = Boolean.TRUE.equals(v) ? -1 : 0;
+        } else if (v instanceof Integer) {
+            a.data = (Integer) v;
+        } else if (v instanceof String) {
+            if ("true".equalsIgnoreCase((String) v)) {
+                a.data = -1;
+            } else if ("false".equalsIgnoreCase((String) v)) {
+                a.data = 0;
+            } else {
+                a.data = Integer.parseInt((String) v);
+            }
+        }
+    }
+
+    /*
+     * Strings are referenced by tokens until the pool is laid out: the index in the input, -1 for
+     * none, or -2 - i for the i-th added string.
+     */
+
+    private int lookup(String s) {
+        if (s == null) {
+            return -1;
+        }
+        StringPool strings = parser.strings;
+        for (int i = 0; i < strings.size(); i++) {
+            if (strings.matches(i, s)) {
+                return i;
+            }
+        }
+        for (int i = 0; i < added.size(); i++) {
+            if (s.equals(added.get(i))) {
+                return -2 - i;
+            }
+        }
+        return add(s, -1);
+    }
+
+    // attribute names with a resource id must be in the resource map, the others must not
+    private int lookupName(String name, int resourceId) {
+        StringPool strings = parser.strings;
+        if (resourceId != -1) {
+            for (int i = 0; i < insertAt; i++) {
+                if (parser.resourceIds[i] == resourceId && strings.matches(i, name)) {
+                    return i;
+                }
+            }
+        } else {
+            for (int i = insertAt; i < strings.size(); i++) {
+                if (strings.matches(i, name)) {
+                    return i;
+                }
+            }
+        }
+        for (int i = 0; i < added.size(); i++) {
+            if (addedIds.get(i) == resourceId && name.equals(added.get(i))) {
+                return -2 - i;
+            }
+        }
+        return add(name, resourceId);
+    }
+
+    private int add(String s, int resourceId) {
+        added.add(s);
+        addedIds.add(resourceId);
+        return -2 - (added.size() - 1);
+    }
+
+    private int index(int token) {
+        if (token <= -2) {
+            return addedIndex[-2 - token];
+        }
+        return token < insertAt ? token : token + inserted;
+    }
+
+    private void write(ByteBuffer out, Node node) {
+        if (node.copied) {
+            copy(out, node.start, node.end);
+            return;
+        }
+        if (node.startCopied) {
+            copy(out, node.start, node.startEnd);
+        } else {
+            writeStart(out, node);
+        }
+        if (node.children != null) {
+            for (Object o : node.children) {
+                if (o instanceof Node) {
+                    write(out, (Node) o);
+                } else if (o instanceof Text) {
+                    Text text = (Text) o;
+                    if (text.start >= 0) {
+                        copy(out, text.start, text.end);
+                    } else {
+                        out.putInt(RES_XML_CDATA_TYPE | (0x0010 << 16));
+                        out.putInt(28);
+                        out.putInt(text.line);
+                        out.putInt(0xFFFFFFFF);
+                        out.putInt(index(text.index));
+                        out.putInt(0x00000008);
+                        out.putInt(0x00000000);
+                    }
+                } else {
+                    copy(out, ((Slice) o).start, ((Slice) o).end);
+                }
+            }
+        }
+        if (node.start >= 0 && !node.renamed) {
+            copy(out, node.endStart, node.end);
+        } else {
+            out.putInt(RES_XML_END_ELEMENT_TYPE | (0x0010 << 16));
+            out.putInt(24);
+            out.putInt(-1);
+            out.putInt(0xFFFFFFFF);
+            out.putInt(index(node.nsIdx));
+            out.putInt(index(node.nameIdx));
+        }
+    }
+
+    private void writeStart(ByteBuffer out, Node node) {
+        List<Attr> attrs = node.attrs;
+        out.putInt(RES_XML_START_ELEMENT_TYPE | (0x0010 << 16));
+        out.putInt(36 + attrs.size() * 20);
+        if (node.start >= 0) {
+            out.putInt(in.getInt(node.start + 8));
+            out.putInt(index(in.getInt(node.start + 12)));
+        } else {
+            out.putInt(node.line);
+            out.putInt(0xFFFFFFFF);
+        }
+        out.putInt(index(node.nsIdx));
+        out.putInt(index(node.nameIdx));
+        out.putInt(0x00140014);
+        out.putShort((short) attrs.size());
+        out.putShort((short) (role(attrs, ValueWrapper.ID) + 1));
+        out.putShort((short) (role(attrs, ValueWrapper.CLASS) + 1));
+        out.putShort((short) (role(attrs, ValueWrapper.STYLE) + 1));
+        for (Attr attr : attrs) {
+            out.putInt(index(attr.nsIdx));
+            out.putInt(index(attr.nameIdx));
+            out.putInt(index(attr.rawIdx));
+            out.putInt(attr.typedValue);
+            out.putInt(attr.stringData ? index(attr.data) : attr.data);
+        }
+    }
+
+    private static int role(List<Attr> attrs, int role) {
+        int index = -1;
+        for (int i = 0; i < attrs.size(); i++) {
+            if (attrs.get(i).role == role) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    // copies chunks of the input, moving their string indices past the inserted names
+    private void copy(ByteBuffer out, int start, int end) {
+        int from = out.position();
+        out.put(data, start, end - start);
+        if (inserted == 0) {
+            return;
+        }
+        for (int p = from; p < out.position(); p += out.getInt(p + 4)) {
+            switch (out.getShort(p) & 0xFFFF) {
+            case RES_XML_START_NAMESPACE_TYPE:
+            case RES_XML_END_NAMESPACE_TYPE:
+            case RES_XML_END_ELEMENT_TYPE:
+                shift(out, p + 12);
+                shift(out, p + 16);
+                shift(out, p + 20);
+                break;
+            case RES_XML_START_ELEMENT_TYPE: {
+                shift(out, p + 12);
+                shift(out, p + 16);
+                shift(out, p + 20);
+                int attrStart = p + 16 + (out.getShort(p + 24) & 0xFFFF);
+                int attrSize = out.getShort(p + 26) & 0xFFFF;
+                int count = out.getShort(p + 28) & 0xFFFF;
+                for (int i = 0; i < count; i++) {
+                    int a = attrStart + i * attrSize;
+                    shift(out, a);
+                    shift(out, a + 4);
+                    shift(out, a + 8);
+                    if (out.get(a + 15) == TYPE_STRING) {
+                        shift(out, a + 16);
+                    }
+                }
+                break;
+            }
+            case RES_XML_CDATA_TYPE:
+                shift(out, p + 12);
+                shift(out, p + 16);
+                if (out.get(p + 23) == TYPE_STRING) {
+                    shift(out, p + 24);
+                }
+                break;
+            }
+        }
+    }
+
+    private void shift(ByteBuffer out, int p) {
+        int index = out.getInt(p);
+        if (index >= insertAt) {
+            out.putInt(p, index + inserted);
+        }
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
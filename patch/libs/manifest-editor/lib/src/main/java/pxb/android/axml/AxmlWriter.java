@@ -16,6 +16,7 @@
 package pxb.android.axml;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
@@ -305,6 +306,8 @@ public class AxmlWriter extends AxmlVisitor {
 
     private StringItems stringItems = new StringItems();
 
+    private int size = -1;
+
     // TODO add style support
     // private List<StringItem> styleItems = new ArrayList();
 
@@ -362,10 +365,34 @@ public class AxmlWriter extends AxmlVisitor {
         return size;
     }
 
+    /**
+     * The size of the document in bytes. The document is laid out on the first call and nothing
+     * can be added to it after.
+     */
+    public int size() throws IOException {
+        if (size < 0) {
+            size = 8 + prepare();
+        }
+        return size;
+    }
+
     public byte[] toByteArray() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(size());
+        writeTo(out);
+        return out.array();
+    }
+
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(toByteArray());
+    }
 
-        int size = 8 + prepare();
-        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Encodes the document at the position of the buffer, which must have {@link #size()} bytes
+     * remaining. The buffer is switched to little endian.
+     */
+    public void writeTo(ByteBuffer out) throws IOException {
+        int size = size();
+        out.order(ByteOrder.LITTLE_ENDIAN);
 
         out.putInt(RES_XML_TYPE | (0x0008 << 16));
         out.putInt(size);
@@ -378,7 +405,9 @@ public class AxmlWriter extends AxmlVisitor {
         out.putInt(RES_STRING_POOL_TYPE | (0x001C << 16));
         out.putInt(stringSize + padding + 8);
         this.stringItems.write(out);
-        out.put(new byte[padding]);
+        for (int i = 0; i < padding; i++) {
+            out.put((byte) 0);
+        }
 
         out.putInt(RES_XML_RESOURCE_MAP_TYPE | (0x0008 << 16));
         out.putInt(8 + this.resourceIds.size() * 4);
@@ -411,7 +440,6 @@ public class AxmlWriter extends AxmlVisitor {
             out.putInt(ns.prefix.index);
             out.putInt(ns.uri.index);
         }
-        return out.array();
     }
 
     StringItem update(StringItem item) {
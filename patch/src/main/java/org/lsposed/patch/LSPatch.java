@@ -6,16 +6,27 @@ import static org.lsposed.lspatch.share.Constants.LOADER_DEX_ASSET_PATH;
 import static org.lsposed.lspatch.share.Constants.ORIGINAL_APK_ASSET_PATH;
 import static org.lsposed.lspatch.share.Constants.PROXY_APP_COMPONENT_FACTORY;
 
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.tools.build.apkzlib.bytestorage.ChunkBasedByteStorageFactory;
+import com.android.tools.build.apkzlib.bytestorage.DirectBufferByteStorageFactory;
+import com.android.tools.build.apkzlib.bytestorage.TemporaryDirectory;
 import com.android.tools.build.apkzlib.sign.SigningExtension;
 import com.android.tools.build.apkzlib.sign.SigningOptions;
 import com.android.tools.build.apkzlib.zip.AlignmentRules;
+import com.android.tools.build.apkzlib.zip.CompressionClassifiers;
+import com.android.tools.build.apkzlib.zip.NestedZip;
 import com.android.tools.build.apkzlib.zip.StoredEntry;
 import com.android.tools.build.apkzlib.zip.ZFile;
 import com.android.tools.build.apkzlib.zip.ZFileOptions;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.wind.meditor.core.ManifestEditor;
 import com.wind.meditor.property.AttributeItem;
 import com.wind.meditor.property.ModificationProperty;
@@ -30,24 +41,38 @@ import org.lsposed.patch.util.ApkSignatureHelper;
 import org.lsposed.patch.util.JavaLogger;
 import org.lsposed.patch.util.Logger;
 import org.lsposed.patch.util.ManifestParser;
+import org.lsposed.patch.util.PatchCache;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyStore;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class LSPatch {
 
@@ -100,22 +125,96 @@ public class LSPatch {
     @Parameter(names = {"-m", "--embed"}, description = "Embed provided modules to apk")
     private List<String> modules = new ArrayList<>();
 
+    @Parameter(names = {"-j", "--jobs"}, description = "Number of apks to patch in parallel. default 1")
+    private int jobs = 1;
 
+    @Parameter(names = {"--v3"}, description = "Also sign with APK Signature Scheme v3")
+    private boolean v3SigningEnabled = false;
 
-    private String packageName;
+    @Parameter(names = {"--sign-threads"}, description = "Number of threads to compute signature digests, 0 to use all cores. default 0")
+    private int signThreads = 0;
+
+    @Parameter(names = {"--update"}, description = "Update a previous output of the same apk, only rewriting the entries that changed")
+    private String previousOutputPath = null;
+
+    @Parameter(names = {"--cache"}, description = "Directory to cache outputs in, keyed by a digest of all inputs. Outputs served from it are read-only hard links")
+    private String cachePath = null;
+
+    @Parameter(names = {"--cache-size"}, description = "Maximum size of the cache in MiB, least recently used outputs are evicted first. default 4096")
+    private long cacheSizeMiB = 4096;
+
+    @Parameter(names = {"--serve"}, description = "Keep running and serve patch jobs on this loopback port instead. A job is a POST to /patch with one argument per line, authorized with the bearer token printed at startup")
+    private int servePort = 0;
+
+    @Parameter(names = {"--abi"}, description = "Add the native loader for this abi only, can be given more than once, be all, or be auto for the abis the apk has native libraries for and the ones that run them through a native bridge. default: all")
+    private List<String> abiList = new ArrayList<>();
+
+    private boolean autoAbi = false;
+
+    @Parameter(names = {"--split-abi"}, description = "Write one output per abi, each with only the native libraries of its abi")
+    private boolean splitAbi = false;
+
+    @Parameter(names = {"--splits"}, description = "Patch the apks as one split install: the first is the base and the others its splits, which are only signed again")
+    private boolean splitSet = false;
+
+    @Parameter(names = {"--max-memory"}, description = "Memory in MiB that all outputs of the run may keep new entry data in together, the rest spills to disk. default: 50 MiB per output")
+    private long maxMemoryMiB = 0;
+
+    @Parameter(names = {"--report"}, description = "Write the time and bytes spent in each phase of patching to this json file")
+    private String reportPath = null;
+
+    private KeyStore.PrivateKeyEntry signingKey;
+
+    // signing keys do not change while running, so they are loaded once per process
+    private static final Map<String, KeyStore.PrivateKeyEntry> SIGNING_KEYS = new ConcurrentHashMap<>();
+
+    private PatchCache patchCache;
+
+    private PatchListener listener;
+
+    private final List<PatchReport> reports = Collections.synchronizedList(new ArrayList<>());
+
+    // modules read in this batch by digest, so that apks patched with the same modules share them
+    private final Map<HashCode, EmbeddedModule> embeddedModules = new ConcurrentHashMap<>();
+
+    private static final class EmbeddedModule {
+        final String packageName;
+        final LoaderResources.Artifact artifact;
+
+        EmbeddedModule(String packageName, LoaderResources.Artifact artifact) {
+            this.packageName = packageName;
+            this.artifact = artifact;
+        }
+    }
 
     private static final String ANDROID_MANIFEST_XML = "AndroidManifest.xml";
-    private static final HashSet<String> ARCHES = new HashSet<>(Arrays.asList(
+    private static final List<String> ARCHES = List.of(
             "armeabi-v7a",
             "arm64-v8a",
             "x86",
             "x86_64"
-    ));
+    );
+
+    private static ZFileOptions newZFileOptions() {
+        return new ZFileOptions().setAlignmentRule(AlignmentRules.compose(
+                AlignmentRules.constantForSuffix(".so", 4096),
+                AlignmentRules.constantForSuffix(ORIGINAL_APK_ASSET_PATH, 4096),
+                // stored and page aligned, so modules can be mapped from the apk as they are
+                AlignmentRules.constantForPrefix(EMBEDDED_MODULES_ASSET_PATH, 4096)
+        )).setParallelCompression(true)
+                .setCompressionClassifier(CompressionClassifiers.alreadyCompressed())
+                .setUseFileChannel(true);
+    }
 
-    private static final ZFileOptions Z_FILE_OPTIONS = new ZFileOptions().setAlignmentRule(AlignmentRules.compose(
-            AlignmentRules.constantForSuffix(".so", 4096),
-            AlignmentRules.constantForSuffix(ORIGINAL_APK_ASSET_PATH, 4096)
-    ));
+    // for the outputs, whose storage is shared by the whole run with --max-memory
+    private final ZFileOptions zFileOptions;
+
+    private final DirectBufferByteStorageFactory storageFactory;
+
+    // for apks that are only opened to look up a few entries
+    private static final ZFileOptions MODULE_Z_FILE_OPTIONS = new ZFileOptions()
+            .setLazyCentralDirectory(true)
+            .setUseFileChannel(true);
 
     private final JCommander jCommander;
 
@@ -129,7 +228,7 @@ public class LSPatch {
             logger.e(e.getMessage() + "\n");
             help = true;
         }
-        if (apkPaths == null || apkPaths.isEmpty()) {
+        if ((apkPaths == null || apkPaths.isEmpty()) && servePort == 0) {
             logger.e("No apk specified\n");
             help = true;
         }
@@ -137,6 +236,60 @@ public class LSPatch {
             logger.e("Should not use --embed and --manager at the same time\n");
             help = true;
         }
+        if (jobs < 1) {
+            logger.e("--jobs should be at least 1\n");
+            help = true;
+        }
+        if (signThreads < 0) {
+            logger.e("--sign-threads should not be negative\n");
+            help = true;
+        }
+        if (servePort < 0 || servePort > 65535) {
+            logger.e("--serve should be a port number\n");
+            help = true;
+        }
+        if (maxMemoryMiB < 0) {
+            logger.e("--max-memory should not be negative\n");
+            help = true;
+        }
+        if (cacheSizeMiB < 1) {
+            logger.e("--cache-size should be at least 1\n");
+            help = true;
+        }
+        if (previousOutputPath != null && apkPaths != null && apkPaths.size() > 1) {
+            logger.e("--update works with a single apk\n");
+            help = true;
+        }
+        if (previousOutputPath != null && splitAbi) {
+            logger.e("Should not use --update and --split-abi at the same time\n");
+            help = true;
+        }
+        if (splitSet && (previousOutputPath != null || splitAbi)) {
+            logger.e("Should not use --splits with --update or --split-abi\n");
+            help = true;
+        }
+        if (abiList.contains("all")) {
+            abiList = ARCHES;
+        } else if (abiList.contains("auto")) {
+            autoAbi = true;
+            abiList = new ArrayList<>();
+        } else if (!ARCHES.containsAll(abiList)) {
+            logger.e("--abi should be one of " + String.join(", ", ARCHES) + ", all or auto\n");
+            help = true;
+        } else {
+            // keeps outputs the same whatever order the abis are given in
+            var abis = new ArrayList<>(ARCHES);
+            abis.retainAll(abiList);
+            abiList = abis;
+        }
+
+        zFileOptions = newZFileOptions();
+        if (maxMemoryMiB > 0) {
+            storageFactory = new DirectBufferByteStorageFactory(maxMemoryMiB * 1024 * 1024, TemporaryDirectory::newSystemTemporaryDirectory);
+            zFileOptions.setStorageFactory(new ChunkBasedByteStorageFactory(storageFactory));
+        } else {
+            storageFactory = null;
+        }
 
         this.logger = logger;
         logger.verbose = verbose;
@@ -149,13 +302,27 @@ public class LSPatch {
             return;
         }
         try {
+            if (lspatch.servePort != 0) {
+                new PatchServer(lspatch, lspatch.logger).start(lspatch.servePort);
+                return;
+            }
             lspatch.doCommandLine();
         } catch (PatchError e) {
             e.printStackTrace(System.err);
         }
     }
 
+    public void setPatchListener(PatchListener listener) {
+        this.listener = listener;
+    }
+
+    // false if the arguments were invalid or did not ask for a patch
+    boolean hasJob() {
+        return !help && servePort == 0;
+    }
+
     public void doCommandLine() throws PatchError, IOException {
+        var tasks = new LinkedHashMap<File, Map<File, String>>();
         for (var apk : apkPaths) {
             File srcApkFile = new File(apk).getAbsoluteFile();
 
@@ -164,101 +331,366 @@ public class LSPatch {
             var outputDir = new File(outputPath);
             outputDir.mkdirs();
 
-            File outputFile = new File(outputDir, String.format(
-                    Locale.getDefault(), "%s-%d-opatched.apk",
-                    FilenameUtils.getBaseName(apkFileName),
-                    LSPConfig.instance.VERSION_CODE)
-            ).getAbsoluteFile();
+            var outputs = new LinkedHashMap<File, String>();
+            if (splitAbi) {
+                for (var abi : splitAbis(srcApkFile)) {
+                    outputs.put(new File(outputDir, String.format(
+                            Locale.getDefault(), "%s-%d-%s-opatched.apk",
+                            FilenameUtils.getBaseName(apkFileName),
+                            LSPConfig.instance.VERSION_CODE, abi)
+                    ).getAbsoluteFile(), abi);
+                }
+            } else {
+                outputs.put(new File(outputDir, String.format(
+                        Locale.getDefault(), "%s-%d-opatched.apk",
+                        FilenameUtils.getBaseName(apkFileName),
+                        LSPConfig.instance.VERSION_CODE)
+                ).getAbsoluteFile(), null);
+            }
 
-            if (outputFile.exists() && !forceOverwrite)
-                throw new PatchError(outputPath + " exists. Use --force to overwrite");
-            logger.i("Processing " + srcApkFile + " -> " + outputFile);
+            for (var outputFile : outputs.keySet()) {
+                if (outputFile.exists() && !forceOverwrite && !outputFile.equals(previousOutputFile()))
+                    throw new PatchError(outputPath + " exists. Use --force to overwrite");
+            }
+            tasks.put(srcApkFile, outputs);
+        }
 
-            patch(srcApkFile, outputFile);
+        try {
+            if (splitSet) {
+                patchSplitSet(tasks);
+            } else {
+                patchAll(tasks);
+            }
+        } finally {
+            if (storageFactory != null) logStorage();
+            if (reportPath != null) writeReport();
         }
     }
 
+    // null without --max-memory, in which case every output has a storage of its own
+    public DirectBufferByteStorageFactory getStorageFactory() {
+        return storageFactory;
+    }
+
+    private void logStorage() {
+        final long mib = 1024 * 1024;
+        logger.i(String.format(Locale.ROOT, "Memory: at most %d of %d MiB used, %d spills to disk (%d MiB), %d evictions",
+                storageFactory.getMaxMemoryBytesUsed() / mib, storageFactory.getBudget() / mib,
+                storageFactory.getSpillCount(), storageFactory.getSpillBytes() / mib,
+                storageFactory.getEvictionCount()));
+    }
+
+    private List<String> splitAbis(File srcApkFile) throws PatchError, IOException {
+        if (!abiList.isEmpty()) return abiList;
+        if (!srcApkFile.exists())
+            throw new PatchError("The source apk file does not exit. Please provide a correct path.");
+        try (var srcZFile = ZFile.openReadOnly(srcApkFile, MODULE_Z_FILE_OPTIONS)) {
+            return abisOf(List.of(srcZFile));
+        }
+    }
+
+    private static String outputNames(Map<File, String> outputs) {
+        var names = new ArrayList<String>();
+        for (var output : outputs.keySet())
+            names.add(output.getPath());
+        return String.join(", ", names);
+    }
+
+    private void patchAll(LinkedHashMap<File, Map<File, String>> tasks) throws PatchError, IOException {
+        if (jobs == 1 || tasks.size() == 1) {
+            for (var task : tasks.entrySet()) {
+                logger.i("Processing " + task.getKey() + " -> " + outputNames(task.getValue()));
+                patch(task.getKey(), task.getValue(), null);
+            }
+            return;
+        }
+
+        // the signing key is parsed once and shared by all workers, while every output
+        // still gets its own SigningExtension since that one tracks per-file state
+        loadSigningKey();
+
+        var pool = Executors.newFixedThreadPool(Math.min(jobs, tasks.size()));
+        var results = new LinkedHashMap<File, Future<Long>>();
+        try {
+            for (var task : tasks.entrySet()) {
+                results.put(task.getKey(), pool.submit(() -> {
+                    logger.i("Processing " + task.getKey() + " -> " + outputNames(task.getValue()));
+                    long start = System.nanoTime();
+                    patch(task.getKey(), task.getValue(), null);
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        logger.i("Summary:");
+        Throwable failure = null;
+        for (var result : results.entrySet()) {
+            var apkName = result.getKey().getName();
+            try {
+                logger.i(String.format(Locale.ROOT, "  %s: done in %d ms", apkName, result.getValue().get()));
+            } catch (ExecutionException e) {
+                logger.e(String.format(Locale.ROOT, "  %s: failed (%s)", apkName, e.getCause()));
+                if (failure == null) failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PatchError("Interrupted while waiting for patch jobs", e);
+            }
+        }
+        if (failure instanceof PatchError)
+            throw (PatchError) failure;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw new PatchError("Failed to patch apks", failure);
+    }
+
+    private void writeReport() throws IOException {
+        var reportFile = new File(reportPath);
+        var parent = reportFile.getAbsoluteFile().getParentFile();
+        if (parent != null) parent.mkdirs();
+        synchronized (reports) {
+            Files.writeString(reportFile.toPath(), new GsonBuilder().setPrettyPrinting().create().toJson(reports));
+        }
+        logger.d("Report written to " + reportFile.getAbsolutePath());
+    }
+
+    private synchronized KeyStore.PrivateKeyEntry loadSigningKey() throws PatchError {
+        if (signingKey != null) return signingKey;
+        // a keystore file changed on disk is loaded again
+        var keystoreId = keystoreArgs + "@" + (keystoreArgs.get(0) == null ? 0 : new File(keystoreArgs.get(0)).lastModified());
+        signingKey = SIGNING_KEYS.get(keystoreId);
+        if (signingKey != null) return signingKey;
+        try {
+            var keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            if (keystoreArgs.get(0) == null) {
+                logger.i("Register apk signer with default keystore...");
+                try (var is = getClass().getClassLoader().getResourceAsStream("assets/keystore")) {
+                    keyStore.load(is, keystoreArgs.get(1).toCharArray());
+                }
+            } else {
+                logger.i("Register apk signer with custom keystore...");
+                try (var is = new FileInputStream(keystoreArgs.get(0))) {
+                    keyStore.load(is, keystoreArgs.get(1).toCharArray());
+                }
+            }
+            signingKey = (KeyStore.PrivateKeyEntry) keyStore.getEntry(keystoreArgs.get(2), new KeyStore.PasswordProtection(keystoreArgs.get(3).toCharArray()));
+        } catch (Exception e) {
+            throw new PatchError("Failed to register signer", e);
+        }
+        SIGNING_KEYS.put(keystoreId, signingKey);
+        return signingKey;
+    }
+
+    // loads everything a patch needs that does not depend on the apk
+    void preload() throws IOException {
+        loadSigningKey();
+        for (var name : LoaderResources.names(ARCHES))
+            LoaderResources.get(name);
+    }
+
+    private synchronized PatchCache loadPatchCache() throws IOException {
+        if (patchCache == null && cachePath != null)
+            patchCache = new PatchCache(new File(cachePath), cacheSizeMiB * 1024 * 1024);
+        return patchCache;
+    }
+
+    // the apk and modules, read once for all outputs of a patch
+    private HashCode sourcesDigest(File srcApkFile) throws IOException {
+        var hasher = Hashing.sha256().newHasher();
+        var sink = Funnels.asOutputStream(hasher);
+        var apk = com.google.common.io.Files.asByteSource(srcApkFile);
+        hasher.putLong(apk.size());
+        apk.copyTo(sink);
+        for (var module : modules) {
+            var file = new File(module);
+            if (!file.isFile()) {
+                hasher.putLong(-1);
+                continue;
+            }
+            var source = com.google.common.io.Files.asByteSource(file);
+            hasher.putLong(source.size());
+            source.copyTo(sink);
+        }
+        return hasher.hash();
+    }
+
+    // everything the output is made of: the apk, modules, options, loader resources and signer
+    private String cacheKey(HashCode sources, KeyStore.PrivateKeyEntry keyEntry, List<String> abis, boolean splitAbi) throws IOException {
+        var hasher = Hashing.sha256().newHasher();
+        hasher.putBytes(sources.asBytes());
+        var config = new PatchConfig(useManager, debuggableFlag, overrideVersionCode, sigbypassLevel, null, null, isInjectProvider, outputLog);
+        hasher.putString(new Gson().toJson(config), StandardCharsets.UTF_8);
+        hasher.putBoolean(v3SigningEnabled);
+        hasher.putBoolean(splitAbi);
+        for (var name : LoaderResources.names(abis)) {
+            var data = LoaderResources.get(name).data;
+            hasher.putInt(data.length).putBytes(data);
+        }
+        try {
+            hasher.putBytes(keyEntry.getCertificate().getEncoded());
+        } catch (CertificateEncodingException e) {
+            throw new PatchError("Failed to read signing certificate", e);
+        }
+        return hasher.hash().toString();
+    }
+
     public void patch(File srcApkFile, File outputFile) throws PatchError, IOException {
+        patch(srcApkFile, Collections.singletonMap(outputFile, null), null);
+    }
+
+    // what every output of an apk is made of, whatever abi it is for
+    private static final class Shared {
+        byte[] manifest;
+        byte[] config;
+        final Map<String, LoaderResources.Artifact> modules = new LinkedHashMap<>();
+    }
+
+    // outputs are mapped to the only abi they are for, or to null to keep all abis of the apk,
+    // which are detected from it unless given
+    private void patch(File srcApkFile, Map<File, String> outputs, List<String> abis) throws PatchError, IOException {
         if (!srcApkFile.exists())
             throw new PatchError("The source apk file does not exit. Please provide a correct path.");
 
-        outputFile.delete();
+        var keyEntry = loadSigningKey();
+        var update = previousOutputFile() != null;
+        var cache = update ? null : loadPatchCache();
 
         logger.d("apk path: " + srcApkFile);
 
         logger.i("Parsing original apk...");
 
-        try (var dstZFile = ZFile.openReadWrite(outputFile, Z_FILE_OPTIONS);
-             var srcZFile = dstZFile.addNestedZip((ignore) -> ORIGINAL_APK_ASSET_PATH, srcApkFile, false)) {
-
-            // sign apk
-            try {
-                var keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-                if (keystoreArgs.get(0) == null) {
-                    logger.i("Register apk signer with default keystore...");
-                    try (var is = getClass().getClassLoader().getResourceAsStream("assets/keystore")) {
-                        keyStore.load(is, keystoreArgs.get(1).toCharArray());
-                    }
-                } else {
-                    logger.i("Register apk signer with custom keystore...");
-                    try (var is = new FileInputStream(keystoreArgs.get(0))) {
-                        keyStore.load(is, keystoreArgs.get(1).toCharArray());
+        var reports = new LinkedHashMap<File, PatchReport>();
+        var cacheKeys = new HashMap<File, String>();
+        final List<String> apkAbis;
+        final Shared shared;
+        try (var srcZFile = ZFile.openReadOnly(srcApkFile, MODULE_Z_FILE_OPTIONS)) {
+            apkAbis = abis != null ? abis : loaderAbis(List.of(srcZFile));
+            logger.d("abis: " + apkAbis);
+            var sources = cache != null ? sourcesDigest(srcApkFile) : null;
+
+            for (var output : outputs.entrySet()) {
+                var outputFile = output.getKey();
+                var report = new PatchReport(srcApkFile, outputFile, listener);
+                if (cache != null) {
+                    var cacheKey = cacheKey(sources, keyEntry, abisFor(apkAbis, output.getValue()), output.getValue() != null);
+                    logger.d("cache key: " + cacheKey);
+                    if (cache.fetch(cacheKey, outputFile)) {
+                        report.cached = true;
+                        finish(report);
+                        logger.i("Done. Output APK served from cache: " + outputFile.getAbsolutePath());
+                        continue;
                     }
+                    cacheKeys.put(outputFile, cacheKey);
                 }
-                var entry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(keystoreArgs.get(2), new KeyStore.PasswordProtection(keystoreArgs.get(3).toCharArray()));
-                new SigningExtension(SigningOptions.builder()
-                        .setMinSdkVersion(28)
-                        .setV2SigningEnabled(true)
-                        .setCertificates((X509Certificate[]) entry.getCertificateChain())
-                        .setKey(entry.getPrivateKey())
-                        .build()).register(dstZFile);
-            } catch (Exception e) {
-                throw new PatchError("Failed to register signer", e);
+                reports.put(outputFile, report);
             }
+            if (reports.isEmpty()) return;
 
-            String originalSignature = null;
-            if (sigbypassLevel > 0) {
-                originalSignature  = ApkSignatureHelper.getApkSignInfo(srcApkFile.getAbsolutePath());
-                if (originalSignature == null || originalSignature.isEmpty()) {
-                    throw new PatchError("get original signature failed");
-                }
-                logger.d("Original signature\n" + originalSignature);
+            // work shared by all outputs is reported with the first one
+            shared = prepare(srcApkFile, srcZFile, reports.values().iterator().next());
+        }
+
+        for (var report : reports.entrySet()) {
+            var outputFile = report.getKey();
+            var abi = outputs.get(outputFile);
+            // the app keeps its own libraries of the output abi only, the loaders bridge to it
+            assemble(srcApkFile, outputFile, shared, abisFor(apkAbis, abi), abi == null ? null : List.of(abi), keyEntry, report.getValue());
+            if (cache != null)
+                cache.store(cacheKeys.get(outputFile), outputFile);
+            finish(report.getValue());
+            logger.i("Done. Output APK: " + outputFile.getAbsolutePath());
+        }
+    }
+
+    private Shared prepare(File srcApkFile, ZFile srcZFile, PatchReport report) throws PatchError, IOException {
+        var shared = new Shared();
+
+        final String originalSignature = sigbypassLevel > 0 ? ApkSignatureHelper.getApkSignInfo(srcApkFile.getAbsolutePath()) : null;
+        if (sigbypassLevel > 0) {
+            if (originalSignature == null || originalSignature.isEmpty()) {
+                throw new PatchError("get original signature failed");
             }
+            logger.d("Original signature\n" + originalSignature);
+        }
 
-            // copy out manifest file from zlib
-            var manifestEntry = srcZFile.get(ANDROID_MANIFEST_XML);
-            if (manifestEntry == null)
-                throw new PatchError("Provided file is not a valid apk");
-
-            // parse the app appComponentFactory full name from the manifest file
-            final String appComponentFactory;
-            int minSdkVersion;
-            try (var is = manifestEntry.open()) {
-                var pair = ManifestParser.parseManifestFile(is);
-                if (pair == null)
-                    throw new PatchError("Failed to parse AndroidManifest.xml");
-                appComponentFactory = pair.appComponentFactory;
-                minSdkVersion = pair.minSdkVersion;
-                packageName = pair.packageName;
-                logger.d("original appComponentFactory class: " + appComponentFactory);
-                logger.d("original minSdkVersion: " + minSdkVersion);
+        // copy out manifest file from zlib
+        var manifestEntry = srcZFile.get(ANDROID_MANIFEST_XML);
+        if (manifestEntry == null)
+            throw new PatchError("Provided file is not a valid apk");
+
+        logger.i("Patching apk...");
+        // the edits depend on what is in the manifest, both are done in one pass over it
+        try (var timer = report.start(PatchReport.Step.MANIFEST_EDIT).read(manifestEntry.getCentralDirectoryHeader().getUncompressedSize()).entries(1);
+             var is = manifestEntry.open()) {
+            var result = ManifestEditor.process(is.readAllBytes(), info -> {
+                logger.d("original appComponentFactory class: " + info.appComponentFactory);
+                logger.d("original minSdkVersion: " + info.minSdkVersion);
+                final var config = new PatchConfig(useManager, debuggableFlag, overrideVersionCode, sigbypassLevel, originalSignature, info.appComponentFactory,isInjectProvider,outputLog);
+                shared.config = new Gson().toJson(config).getBytes(StandardCharsets.UTF_8);
+                final var metadata = Base64.getEncoder().encodeToString(shared.config);
+                return manifestProperty(metadata, info.minSdkVersion, info.packageName);
+            });
+            shared.manifest = result.data;
+            timer.wrote(shared.manifest.length);
+        } catch (Throwable e) {
+            throw new PatchError("Error when modifying manifest", e);
+        }
+
+        if (!useManager) {
+            logger.i("Embedding modules...");
+            try (var timer = report.start(PatchReport.Step.MODULE_EMBED)) {
+                readModules(shared, timer);
             }
+        }
+        return shared;
+    }
 
-            logger.i("Patching apk...");
-            // modify manifest
-            final var config = new PatchConfig(useManager, debuggableFlag, overrideVersionCode, sigbypassLevel, originalSignature, appComponentFactory,isInjectProvider,outputLog);
-            final var configBytes = new Gson().toJson(config).getBytes(StandardCharsets.UTF_8);
-            final var metadata = Base64.getEncoder().encodeToString(configBytes);
-            try (var is = new ByteArrayInputStream(modifyManifestFile(manifestEntry.open(), metadata, minSdkVersion))) {
-                dstZFile.add(ANDROID_MANIFEST_XML, is);
+    // libAbis are the abis whose lib/ entries are kept, or null to keep all of them
+    private void assemble(File srcApkFile, File outputFile, Shared shared, List<String> abis, List<String> libAbis,
+                          KeyStore.PrivateKeyEntry keyEntry, PatchReport report) throws PatchError, IOException {
+        var previousOutput = previousOutputFile();
+        var update = previousOutput != null;
+        var validation = SigningOptions.Validation.ALWAYS_VALIDATE;
+        if (update) {
+            if (!previousOutput.exists())
+                throw new PatchError("The previous output " + previousOutput + " does not exist");
+            validation = updateValidation(previousOutput, keyEntry);
+            // outputs served from the cache are links into it, so those are copied too
+            if (!previousOutput.equals(outputFile) || !outputFile.canWrite() || PatchCache.isLinked(outputFile)) {
+                var copy = new File(outputFile.getPath() + ".tmp");
+                Files.copy(previousOutput.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                copy.setWritable(true);
+                Files.move(copy.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } else {
+            outputFile.delete();
+        }
+
+        // when updating, origin.apk and the links into it are already in place
+        try (var dstZFile = ZFile.openReadWrite(outputFile, zFileOptions);
+             var srcZFile = update ? ZFile.openReadOnly(srcApkFile, MODULE_Z_FILE_OPTIONS)
+                     : dstZFile.addNestedZip((ignore) -> ORIGINAL_APK_ASSET_PATH, srcApkFile, false)) {
+
+            if (update && !hasContent(dstZFile.get(ORIGINAL_APK_ASSET_PATH), com.google.common.io.Files.asByteSource(srcApkFile)))
+                throw new PatchError(previousOutput.getName() + " was not patched from " + srcApkFile.getName() + ", patch it without --update");
+
+            report.register(dstZFile);
+
+            // sign apk
+            registerSigner(dstZFile, keyEntry, validation);
+
+            try {
+                addIfChanged(dstZFile, ANDROID_MANIFEST_XML, shared.manifest, true);
             } catch (Throwable e) {
                 throw new PatchError("Error when modifying manifest", e);
             }
 
             logger.i("Adding config...");
             // save lspatch config to asset..
-            try (var is = new ByteArrayInputStream(configBytes)) {
-                dstZFile.add(CONFIG_ASSET_PATH, is);
+            try {
+                addIfChanged(dstZFile, CONFIG_ASSET_PATH, shared.config, true);
             } catch (Throwable e) {
                 throw new PatchError("Error when saving config");
             }
@@ -266,23 +698,26 @@ public class LSPatch {
 
 
             if (isInjectProvider){
-                try (var is = getClass().getClassLoader().getResourceAsStream("assets/provider.dex")) {
-                    dstZFile.add("assets/lspatch/provider.dex", is);
+                try (var timer = report.start(PatchReport.Step.LOADER_ADD)) {
+                    addIfChanged(dstZFile, "assets/lspatch/provider.dex", LoaderResources.get(LoaderResources.PROVIDER_DEX_RESOURCE), true, timer);
                 } catch (Throwable e) {
                     throw new PatchError("Error when adding dex", e);
                 }
+            } else if (update) {
+                var provider = dstZFile.get("assets/lspatch/provider.dex");
+                if (provider != null) provider.delete();
             }
 
-            if (!useManager) {
-                logger.i("Embedding modules...");
-                embedModules(dstZFile);
+            // with --manager there are none, which drops the modules embedded by a previous patch
+            try (var timer = report.start(PatchReport.Step.MODULE_EMBED)) {
+                embedModules(dstZFile, shared, timer);
             }
 
-            {
+            try (var timer = report.start(PatchReport.Step.LOADER_ADD)) {
 
                 logger.i("Adding loader dex...");
-                try (var is = getClass().getClassLoader().getResourceAsStream(LOADER_DEX_ASSET_PATH)) {
-                    dstZFile.add(LOADER_DEX_ASSET_PATH, is);
+                try {
+                    addIfChanged(dstZFile, LOADER_DEX_ASSET_PATH, LoaderResources.get(LOADER_DEX_ASSET_PATH), true, timer);
                 } catch (Throwable e) {
                     throw new PatchError("Error when adding assets", e);
                 }
@@ -292,9 +727,14 @@ public class LSPatch {
                 // copy so and dex files into the unzipped apk
                 // do not put liblspatch.so into apk!lib because x86 native bridge causes crash
                 for (String arch : ARCHES) {
-                    String entryName = "assets/lspatch/so/" + arch + "/liblspatch.so";
-                    try (var is = getClass().getClassLoader().getResourceAsStream(entryName)) {
-                        dstZFile.add(entryName, is, false); // no compress for so
+                    String entryName = LoaderResources.nativeLib(arch);
+                    if (!abis.contains(arch)) {
+                        var stale = dstZFile.get(entryName);
+                        if (stale != null) stale.delete();
+                        continue;
+                    }
+                    try {
+                        addIfChanged(dstZFile, entryName, LoaderResources.get(entryName), false, timer); // no compress for so
                     } catch (Throwable e) {
                         // More exception info
                         throw new PatchError("Error when adding native lib", e);
@@ -310,24 +750,32 @@ public class LSPatch {
 //                throw new PatchError("Error when adding dex", e);
 //            }
 
-            // create zip link
-            logger.d("Creating nested apk link...");
-
-            for (StoredEntry entry : srcZFile.entries()) {
-
-                String name = entry.getCentralDirectoryHeader().getName();
-//                if (name.startsWith("classes") && name.endsWith(".dex")) continue;
-                if (dstZFile.get(name) != null) continue;
-                if (name.equals("AndroidManifest.xml")) continue;
-                if (name.startsWith("META-INF") && (name.endsWith(".SF") || name.endsWith(".MF") || name.endsWith(".RSA"))) continue;
-                srcZFile.addFileLink(name, name);
+            if (!update) {
+                // create zip link
+                logger.d("Creating nested apk link...");
+
+                try (var timer = report.start(PatchReport.Step.NESTED_LINK)) {
+                    for (StoredEntry entry : srcZFile.entries()) {
+
+                        String name = entry.getCentralDirectoryHeader().getName();
+//                    if (name.startsWith("classes") && name.endsWith(".dex")) continue;
+                        if (dstZFile.get(name) != null) continue;
+                        if (name.equals("AndroidManifest.xml")) continue;
+                        if (name.startsWith("META-INF") && (name.endsWith(".SF") || name.endsWith(".MF") || name.endsWith(".RSA"))) continue;
+                        // the installer picks the abi of the process from lib/, which has to match the loader
+                        var libAbi = abiOfLib(name);
+                        if (libAbis != null && libAbi != null && !libAbis.contains(libAbi)) continue;
+                        ((NestedZip) srcZFile).addFileLink(name, name);
+                        timer.entries(1);
+                    }
+                }
             }
 
             logger.i("Adding metaloader dex...");
-            try (var is = getClass().getClassLoader().getResourceAsStream(Constants.META_LOADER_DEX_ASSET_PATH)) {
+            try (var timer = report.start(PatchReport.Step.LOADER_ADD)) {
                 for (int i=2;i<99;i++){
                     if (srcZFile.get("classes" + i + ".dex") == null){
-                        dstZFile.add("classes" + i + ".dex", is);
+                        addIfChanged(dstZFile, "classes" + i + ".dex", LoaderResources.get(Constants.META_LOADER_DEX_ASSET_PATH), true, timer);
                         break;
                     }
                 }
@@ -336,31 +784,385 @@ public class LSPatch {
                 throw new PatchError("Error when adding dex", e);
             }
 
-            dstZFile.realign();
+            try (var timer = report.start(PatchReport.Step.REALIGN)) {
+                timer.entries(dstZFile.entries().size());
+                dstZFile.realign();
+            }
 
+            logger.d(String.format(Locale.ROOT, "Stored %d bytes of already compressed data without deflating", dstZFile.getCompressionSkippedBytes()));
             logger.i("Writing apk...");
+            report.update(dstZFile);
+            logger.d(String.format(Locale.ROOT, "Kept at most %d bytes of new entry data", dstZFile.getStorage().getMaxBytesUsed()));
+            if (storageFactory != null)
+                logger.d(String.format(Locale.ROOT, "Run storage: %d bytes in memory, %d on disk, %d outputs open",
+                        storageFactory.getMemoryBytesUsed(), storageFactory.getDiskBytesUsed(), storageFactory.getStorageCount()));
+        }
+    }
+
+    // abis the apks ship native code for, or all of them if they ship none
+    private static List<String> abisOf(List<ZFile> zFiles) {
+        var abis = new TreeSet<String>();
+        for (var zFile : zFiles) {
+            for (var entry : zFile.entries()) {
+                var abi = abiOfLib(entry.getCentralDirectoryHeader().getName());
+                if (abi != null && !abi.isEmpty()) abis.add(abi);
+            }
+        }
+        if (abis.isEmpty()) return ARCHES;
+        var ordered = new ArrayList<>(ARCHES);
+        ordered.retainAll(abis);
+        return ordered;
+    }
+
+    // "" for entries in lib/ that are no native code of a known abi, null outside of lib/
+    private static String abiOfLib(String name) {
+        if (!name.startsWith("lib/")) return null;
+        var end = name.indexOf('/', 4);
+        if (end < 0) return null;
+        var abi = name.substring(4, end);
+        // armeabi libraries run in armeabi-v7a processes
+        if (abi.equals("armeabi")) return "armeabi-v7a";
+        return ARCHES.contains(abi) ? abi : "";
+    }
+
+    private static List<String> abisFor(List<String> apkAbis, String abi) {
+        return abi == null ? apkAbis : withBridged(List.of(abi));
+    }
+
+    // the loader is picked by the instruction set of the runtime, not by the abi of the app
+    private List<String> loaderAbis(List<ZFile> zFiles) {
+        if (!abiList.isEmpty()) return abiList;
+        if (!autoAbi) return ARCHES;
+        return withBridged(abisOf(zFiles));
+    }
+
+    // x86 devices run arm libraries through a native bridge, with the runtime itself still on x86
+    private static List<String> withBridged(List<String> abis) {
+        if (!abis.contains("armeabi-v7a") && !abis.contains("arm64-v8a")) return abis;
+        var bridged = new ArrayList<>(ARCHES);
+        bridged.removeIf(abi -> !abis.contains(abi) && !abi.startsWith("x86"));
+        return bridged;
+    }
+
+    private void registerSigner(ZFile zFile, KeyStore.PrivateKeyEntry keyEntry, SigningOptions.Validation validation) throws PatchError {
+        try {
+            new SigningExtension(SigningOptions.builder()
+                    .setMinSdkVersion(28)
+                    .setV2SigningEnabled(true)
+                    .setV3SigningEnabled(v3SigningEnabled)
+                    .setValidation(validation)
+                    .setExecutor(signingExecutor())
+                    .setCertificates((X509Certificate[]) keyEntry.getCertificateChain())
+                    .setKey(keyEntry.getPrivateKey())
+                    .build()).register(zFile);
+        } catch (Exception e) {
+            throw new PatchError("Failed to register signer", e);
+        }
+    }
+
+    // the base goes through the whole patch while the splits, which hold no code to load from,
+    // only get signed again with the same key, on their own threads
+    private void patchSplitSet(LinkedHashMap<File, Map<File, String>> tasks) throws PatchError, IOException {
+        var apks = new ArrayList<>(tasks.keySet());
+        var base = apks.get(0);
+        var splits = apks.subList(1, apks.size());
+        var outputFiles = new HashMap<File, File>();
+        for (var apk : apks) {
+            if (!apk.exists())
+                throw new PatchError("The source apk file does not exit. Please provide a correct path.");
+            // splits of the same name in different directories would be written to the same file
+            for (var outputFile : tasks.get(apk).keySet()) {
+                var other = outputFiles.putIfAbsent(outputFile, apk);
+                if (other != null)
+                    throw new PatchError(other + " and " + apk + " would both be written to " + outputFile + ", rename one of them");
+            }
+        }
+        var keyEntry = loadSigningKey();
+
+        // config splits carry the native code of a split install
+        String packageName;
+        List<String> abis;
+        var zFiles = new ArrayList<ZFile>();
+        try {
+            for (var apk : apks)
+                zFiles.add(ZFile.openReadOnly(apk, MODULE_Z_FILE_OPTIONS));
+            packageName = packageNameOf(zFiles.get(0));
+            abis = loaderAbis(zFiles);
+        } finally {
+            for (var zFile : zFiles)
+                zFile.close();
+        }
+
+        var results = new LinkedHashMap<File, Future<?>>();
+        ExecutorService pool = null;
+        if (!splits.isEmpty()) {
+            pool = Executors.newFixedThreadPool(Math.min(splits.size(), Runtime.getRuntime().availableProcessors()));
+            for (var split : splits) {
+                var outputFile = tasks.get(split).keySet().iterator().next();
+                results.put(split, pool.submit(() -> {
+                    signSplit(split, outputFile, packageName, keyEntry);
+                    return null;
+                }));
+            }
+            pool.shutdown();
+        }
+
+        Throwable failure = null;
+        try {
+            logger.i("Processing " + base + " -> " + outputNames(tasks.get(base)));
+            patch(base, tasks.get(base), abis);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            var splitFailures = awaitSplits(results, pool);
+            // a failing base is what is reported, with the splits that failed along with it
+            if (failure != null) {
+                for (var splitFailure : splitFailures)
+                    failure.addSuppressed(splitFailure);
+            } else if (!splitFailures.isEmpty()) {
+                var first = splitFailures.get(0);
+                for (var splitFailure : splitFailures.subList(1, splitFailures.size()))
+                    first.addSuppressed(splitFailure);
+                if (first instanceof IOException)
+                    throw (IOException) first;
+                throw (PatchError) first;
+            }
+        }
+    }
+
+    // waits for every split, so that none is still being written when the run ends
+    private static List<Throwable> awaitSplits(Map<File, Future<?>> results, ExecutorService pool) {
+        var failures = new ArrayList<Throwable>();
+        for (var result : results.entrySet()) {
+            try {
+                result.getValue().get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof PatchError || e.getCause() instanceof IOException)
+                    failures.add(e.getCause());
+                else
+                    failures.add(new PatchError("Failed to sign " + result.getKey().getName(), e.getCause()));
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+                failures.add(new PatchError("Interrupted while signing splits", e));
+                break;
+            }
+        }
+        return failures;
+    }
+
+    private void signSplit(File split, File outputFile, String packageName, KeyStore.PrivateKeyEntry keyEntry) throws PatchError, IOException {
+        logger.i("Signing split " + split + " -> " + outputFile);
+        var report = new PatchReport(split, outputFile, listener);
+        var copy = new File(outputFile.getPath() + ".tmp");
+        Files.copy(split.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        copy.setWritable(true);
+        Files.move(copy.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        try (var zFile = ZFile.openReadWrite(outputFile, zFileOptions)) {
+            var splitPackageName = packageNameOf(zFile);
+            if (!packageName.equals(splitPackageName))
+                throw new PatchError(split.getName() + " is a split of " + splitPackageName + ", not of " + packageName);
+
+            for (var entry : zFile.entries()) {
+                var name = entry.getCentralDirectoryHeader().getName();
+                if (name.startsWith("META-INF") && (name.endsWith(".SF") || name.endsWith(".MF") || name.endsWith(".RSA")))
+                    entry.delete();
+            }
+
+            report.register(zFile);
+            registerSigner(zFile, keyEntry, SigningOptions.Validation.ASSUME_INVALID);
+            try (var timer = report.start(PatchReport.Step.REALIGN)) {
+                timer.entries(zFile.entries().size());
+                zFile.realign();
+            }
+            report.update(zFile);
+        }
+        finish(report);
+        logger.i("Done. Output split: " + outputFile.getAbsolutePath());
+    }
+
+    private static String packageNameOf(ZFile zFile) throws PatchError, IOException {
+        var manifestEntry = zFile.get(ANDROID_MANIFEST_XML);
+        if (manifestEntry == null)
+            throw new PatchError(zFile.getFile().getName() + " is not a valid apk");
+        try (var is = manifestEntry.open()) {
+            var pair = ManifestParser.parseManifestFile(is);
+            if (pair == null)
+                throw new PatchError("Failed to parse AndroidManifest.xml of " + zFile.getFile().getName());
+            return pair.packageName;
+        }
+    }
+
+    private void finish(PatchReport report) {
+        report.finish();
+        if (reportPath != null) reports.add(report);
+    }
+
+    private RunnablesExecutor signingExecutor() {
+        if (signThreads == 0) return RunnablesExecutor.MULTI_THREADED;
+        if (signThreads == 1) return RunnablesExecutor.SINGLE_THREADED;
+        // every runnable keeps taking chunks to digest until there are none left
+        return provider -> {
+            var pool = Executors.newFixedThreadPool(signThreads);
+            try {
+                var futures = new ArrayList<Future<?>>();
+                for (int i = 0; i < signThreads; i++) {
+                    futures.add(pool.submit(provider.createRunnable()));
+                }
+                for (var future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while computing digests", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to compute digests", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        };
+    }
+
+    private File previousOutputFile() {
+        return previousOutputPath == null ? null : new File(previousOutputPath).getAbsoluteFile();
+    }
+
+    // the cached signing block is only kept if it was made with the same key
+    private SigningOptions.Validation updateValidation(File previousOutput, KeyStore.PrivateKeyEntry keyEntry) {
+        try {
+            var signer = ApkSignatureHelper.getCertificateSignInfo(keyEntry.getCertificate());
+            if (signer.equals(ApkSignatureHelper.getApkSignInfo(previousOutput.getAbsolutePath())))
+                return SigningOptions.Validation.ASSUME_VALID;
+        } catch (CertificateEncodingException ignored) {
         }
-        logger.i("Done. Output APK: " + outputFile.getAbsolutePath());
+        logger.d("Previous output is signed with another key, signing again");
+        return SigningOptions.Validation.ASSUME_INVALID;
     }
 
-    private void embedModules(ZFile zFile) {
+    // size and crc are already in the central directory, so unchanged entries cost a crc to detect
+    private static boolean hasContent(StoredEntry entry, ByteSource content) throws IOException {
+        if (entry == null) return false;
+        var cdh = entry.getCentralDirectoryHeader();
+        return cdh.getUncompressedSize() == content.size()
+                && cdh.getCrc32() == content.hash(Hashing.crc32()).padToLong();
+    }
+
+    private static void addIfChanged(ZFile zFile, String name, byte[] data, boolean mayCompress) throws IOException {
+        var source = ByteSource.wrap(data);
+        if (hasContent(zFile.get(name), source)) return;
+        // the entry reads the array itself instead of a copy in the storage
+        zFile.add(name, source, mayCompress);
+    }
+
+    // loader artifacts are added already compressed, which is reported with the step adding them
+    private static void addIfChanged(ZFile zFile, String name, LoaderResources.Artifact artifact, boolean mayCompress, PatchReport.Timer timer) throws IOException {
+        if (artifact.isIn(zFile.get(name))) return;
+        timer.wrote(artifact.addTo(zFile, name, mayCompress)).entries(1);
+    }
+
+    // every module file is read once and its manifest found in the bytes that get embedded
+    private void readModules(Shared shared, PatchReport.Timer timer) {
         for (var module : modules) {
-            File file = new File(module);
-            try (var apk = ZFile.openReadOnly(new File(module));
-                 var fileIs = new FileInputStream(file);
-                 var xmlIs = Objects.requireNonNull(apk.get(ANDROID_MANIFEST_XML)).open()
-            ) {
-                var manifest = Objects.requireNonNull(ManifestParser.parseManifestFile(xmlIs));
-                var packageName = manifest.packageName;
-                logger.i("  - " + packageName);
-                zFile.add(EMBEDDED_MODULES_ASSET_PATH + packageName + ".apk", fileIs);
-            } catch (NullPointerException | IOException e) {
+            try {
+                var moduleFile = new File(module);
+                var data = Files.readAllBytes(moduleFile.toPath());
+                timer.read(data.length);
+                var digest = Hashing.sha256().hashBytes(data);
+                var embedded = embeddedModules.get(digest);
+                if (embedded == null) {
+                    embedded = new EmbeddedModule(modulePackageName(moduleFile, data), LoaderResources.Artifact.stored(data));
+                    var previous = embeddedModules.putIfAbsent(digest, embedded);
+                    if (previous != null) embedded = previous;
+                }
+                logger.i("  - " + embedded.packageName);
+                shared.modules.put(EMBEDDED_MODULES_ASSET_PATH + embedded.packageName + ".apk", embedded.artifact);
+            } catch (PatchError | IOException e) {
                 logger.e(module + " does not exist or is not a valid apk file.");
             }
         }
     }
 
-    private byte[] modifyManifestFile(InputStream is, String metadata, int minSdkVersion) throws IOException {
+    private static String modulePackageName(File module, byte[] apk) throws PatchError, IOException {
+        var manifest = zipEntry(apk, ANDROID_MANIFEST_XML);
+        if (manifest == null)
+            throw new PatchError(module.getName() + " is not a valid apk");
+        var pair = ManifestParser.parseManifestFile(new ByteArrayInputStream(manifest));
+        if (pair == null || pair.packageName == null)
+            throw new PatchError("Failed to parse AndroidManifest.xml of " + module.getName());
+        return pair.packageName;
+    }
+
+    // reads an entry of a zip in memory through its central directory, null if there is none
+    private static byte[] zipEntry(byte[] zip, String name) throws IOException {
+        var buffer = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+        int min = Math.max(0, zip.length - 22 - 0xFFFF);
+        int eocd = zip.length - 22;
+        while (eocd >= min && buffer.getInt(eocd) != 0x06054b50) eocd--;
+        if (eocd < min)
+            throw new IOException("No end of central directory");
+        int count = buffer.getShort(eocd + 10) & 0xFFFF;
+        long p = buffer.getInt(eocd + 16) & 0xFFFFFFFFL;
+        var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < count; i++) {
+            if (p + 46 > eocd || buffer.getInt((int) p) != 0x02014b50)
+                throw new IOException("Bad central directory");
+            int header = (int) p;
+            int nameLength = buffer.getShort(header + 28) & 0xFFFF;
+            p += 46 + nameLength + (buffer.getShort(header + 30) & 0xFFFF) + (buffer.getShort(header + 32) & 0xFFFF);
+            if (p > eocd)
+                throw new IOException("Bad central directory");
+            if (!Arrays.equals(zip, header + 46, header + 46 + nameLength, nameBytes, 0, nameBytes.length))
+                continue;
+
+            int method = buffer.getShort(header + 10) & 0xFFFF;
+            long compressedSize = buffer.getInt(header + 20) & 0xFFFFFFFFL;
+            long size = buffer.getInt(header + 24) & 0xFFFFFFFFL;
+            long local = buffer.getInt(header + 42) & 0xFFFFFFFFL;
+            if (local + 30 > zip.length || buffer.getInt((int) local) != 0x04034b50)
+                throw new IOException("Bad local header of " + name);
+            long data = local + 30 + (buffer.getShort((int) local + 26) & 0xFFFF) + (buffer.getShort((int) local + 28) & 0xFFFF);
+            if (data + compressedSize > zip.length || size > Integer.MAX_VALUE - 8)
+                throw new IOException("Bad size of " + name);
+            if (method == 0)
+                return Arrays.copyOfRange(zip, (int) data, (int) (data + compressedSize));
+            if (method != 8)
+                throw new IOException("Unsupported compression of " + name);
+            var inflater = new Inflater(true);
+            try {
+                inflater.setInput(zip, (int) data, (int) compressedSize);
+                var entry = new byte[(int) size];
+                int length = 0;
+                while (length < entry.length && !inflater.finished()) {
+                    int n = inflater.inflate(entry, length, entry.length - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    length += n;
+                }
+                if (length != entry.length)
+                    throw new IOException("Truncated " + name);
+                return entry;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt " + name, e);
+            } finally {
+                inflater.end();
+            }
+        }
+        return null;
+    }
+
+    private static void embedModules(ZFile zFile, Shared shared, PatchReport.Timer timer) throws IOException {
+        for (var module : shared.modules.entrySet())
+            addIfChanged(zFile, module.getKey(), module.getValue(), false, timer);
+        for (var entry : zFile.entries()) {
+            var name = entry.getCentralDirectoryHeader().getName();
+            if (name.startsWith(EMBEDDED_MODULES_ASSET_PATH) && !shared.modules.containsKey(name))
+                entry.delete();
+        }
+    }
+
+    private ModificationProperty manifestProperty(String metadata, int minSdkVersion, String packageName) {
         ModificationProperty property = new ModificationProperty();
 
         if (overrideVersionCode)
@@ -385,11 +1187,6 @@ public class LSPatch {
 
         }
 
-        var os = new ByteArrayOutputStream();
-        (new ManifestEditor(is, os, property)).processManifest();
-        is.close();
-        os.flush();
-        os.close();
-        return os.toByteArray();
+        return property;
     }
 }
@@ -0,0 +1,117 @@
+package org.lsposed.patch;
+
+import static org.lsposed.lspatch.share.Constants.LOADER_DEX_ASSET_PATH;
+import static org.lsposed.lspatch.share.Constants.META_LOADER_DEX_ASSET_PATH;
+
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.utils.CloseableDelegateByteSource;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Loader artifacts put into every patched apk, read from the jar once per process.
+ * Each artifact is deflated once and kept with its crc, so adding it to an apk copies the
+ * compressed bytes instead of reading the jar and deflating again. Native libraries are always
+ * added stored and are not deflated at all. Embedded modules are kept the same way, stored,
+ * while they are added to the outputs of a batch.
+ */
+final class LoaderResources {
+
+    static final String PROVIDER_DEX_RESOURCE = "assets/provider.dex";
+
+    private static final Map<String, Artifact> ARTIFACTS = new ConcurrentHashMap<>();
+
+    private LoaderResources() {
+    }
+
+    static final class Artifact {
+        final byte[] data;
+        final long crc32;
+        private final CompressionResult stored;
+        private final CompressionResult deflated;
+
+        private Artifact(byte[] data, boolean compressible) {
+            this.data = data;
+            crc32 = Hashing.crc32().hashBytes(data).padToLong();
+            stored = result(data, CompressionMethod.STORE);
+            var compressed = compressible ? deflate(data) : data;
+            deflated = compressed.length < data.length ? result(compressed, CompressionMethod.DEFLATE) : stored;
+        }
+
+        // for data that is already compressed, such as module apks
+        static Artifact stored(byte[] data) {
+            return new Artifact(data, false);
+        }
+
+        boolean isIn(StoredEntry entry) {
+            if (entry == null) return false;
+            var cdh = entry.getCentralDirectoryHeader();
+            return cdh.getUncompressedSize() == data.length && cdh.getCrc32() == crc32;
+        }
+
+        // returns the size of the data added, compressed or not
+        long addTo(ZFile zFile, String name, boolean mayCompress) throws IOException {
+            var result = mayCompress ? deflated : stored;
+            zFile.addCompressed(name, result, data.length, crc32);
+            return result.getSize();
+        }
+
+        private static CompressionResult result(byte[] bytes, CompressionMethod method) {
+            return new CompressionResult(new CloseableDelegateByteSource(ByteSource.wrap(bytes), bytes.length), method, bytes.length);
+        }
+
+        private static byte[] deflate(byte[] data) {
+            var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                var os = new ByteArrayOutputStream(data.length / 2 + 64);
+                var buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    os.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return os.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    static Artifact get(String name) throws IOException {
+        var artifact = ARTIFACTS.get(name);
+        if (artifact == null) {
+            try (var is = LoaderResources.class.getClassLoader().getResourceAsStream(name)) {
+                if (is == null) throw new FileNotFoundException(name);
+                artifact = new Artifact(is.readAllBytes(), !name.endsWith(".so"));
+            }
+            // racing loads produce the same artifact, the first one is kept
+            var previous = ARTIFACTS.putIfAbsent(name, artifact);
+            if (previous != null) artifact = previous;
+        }
+        return artifact;
+    }
+
+    static String nativeLib(String arch) {
+        return "assets/lspatch/so/" + arch + "/liblspatch.so";
+    }
+
+    static List<String> names(Collection<String> arches) {
+        var names = new ArrayList<>(List.of(LOADER_DEX_ASSET_PATH, META_LOADER_DEX_ASSET_PATH, PROVIDER_DEX_RESOURCE));
+        for (var arch : arches)
+            names.add(nativeLib(arch));
+        return names;
+    }
+}
@@ -0,0 +1,15 @@
+package org.lsposed.patch;
+
+/**
+ * Receives the measurements of a patch as it goes.
+ * Calls come from the thread patching the apk, which is not the same for every apk with --jobs.
+ */
+public interface PatchListener {
+
+    /** Called when a phase of patching an apk is over. */
+    void onPhase(PatchReport report, PatchReport.Phase phase);
+
+    /** Called when an apk is patched, with all of its phases. */
+    default void onPatched(PatchReport report) {
+    }
+}
@@ -0,0 +1,202 @@
+package org.lsposed.patch;
+
+import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileExtension;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time and bytes spent in each phase of patching one apk.
+ * Public fields are what --report writes out, as they are.
+ */
+public class PatchReport {
+
+    public enum Step {
+        MANIFEST_EDIT,
+        MODULE_EMBED,
+        LOADER_ADD,
+        NESTED_LINK,
+        REALIGN,
+        // waiting for entries still deflating in the background
+        COMPRESSION,
+        WRITE,
+        SIGNING,
+    }
+
+    public static final class Phase {
+        public final Step step;
+        public long wallNanos;
+        // cpu time of the patching thread only, -1 where the platform cannot tell
+        public long cpuNanos;
+        public long bytesRead;
+        public long bytesWritten;
+        public int entries;
+
+        Phase(Step step) {
+            this.step = step;
+        }
+    }
+
+    public final class Timer implements AutoCloseable {
+        private final Phase phase;
+        private final long wallStart = System.nanoTime();
+        private final long cpuStart = threadCpuNanos();
+        private boolean closed;
+
+        private Timer(Step step) {
+            phase = new Phase(step);
+        }
+
+        public Timer read(long bytes) {
+            phase.bytesRead += bytes;
+            return this;
+        }
+
+        public Timer wrote(long bytes) {
+            phase.bytesWritten += bytes;
+            return this;
+        }
+
+        public Timer entries(int count) {
+            phase.entries += count;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            phase.wallNanos = System.nanoTime() - wallStart;
+            long cpuEnd = threadCpuNanos();
+            phase.cpuNanos = cpuStart < 0 || cpuEnd < 0 ? -1 : cpuEnd - cpuStart;
+            phases.add(phase);
+            if (listener != null) listener.onPhase(PatchReport.this, phase);
+        }
+    }
+
+    public final String apk;
+    public final String output;
+    public boolean cached;
+    public long wallNanos;
+    public final List<Phase> phases = new ArrayList<>();
+
+    private final transient PatchListener listener;
+    private final transient long start = System.nanoTime();
+    private transient Timer updating;
+    private transient long writtenBefore;
+
+    PatchReport(File apk, File output, PatchListener listener) {
+        this.apk = apk.getPath();
+        this.output = output.getPath();
+        this.listener = listener;
+    }
+
+    public Timer start(Step step) {
+        return new Timer(step);
+    }
+
+    /**
+     * Splits the update of the zip into compression, write and signing, going by the callbacks the
+     * signer works in. Has to be registered before the signer so that its callbacks run first.
+     */
+    void register(ZFile zFile) {
+        zFile.addZFileExtension(new ZFileExtension() {
+            // compression that ran before, which was reported with an earlier update
+            private long compressedEntries = zFile.getCompressedEntries();
+            private long compressionInputBytes = zFile.getCompressionInputBytes();
+            private long compressionOutputBytes = zFile.getCompressionOutputBytes();
+
+            @Override
+            public IOExceptionRunnable beforeUpdate() throws IOException {
+                if (updating != null) {
+                    // new entries are the ones without data in the file yet
+                    for (StoredEntry entry : zFile.entries()) {
+                        var cdh = entry.getCentralDirectoryHeader();
+                        if (cdh.getOffset() >= 0 || entry.isLinkingEntry()) continue;
+                        cdh.getCompressionInfoWithWait();
+                    }
+                    // only entries deflated in this run, loader artifacts come compressed already
+                    var entries = zFile.getCompressedEntries();
+                    var input = zFile.getCompressionInputBytes();
+                    var output = zFile.getCompressionOutputBytes();
+                    updating.read(input - compressionInputBytes).wrote(output - compressionOutputBytes)
+                            .entries((int) (entries - compressedEntries));
+                    compressedEntries = entries;
+                    compressionInputBytes = input;
+                    compressionOutputBytes = output;
+                }
+                next(zFile, Step.WRITE);
+                return null;
+            }
+
+            @Override
+            public void entriesWritten() {
+                next(zFile, Step.SIGNING);
+            }
+
+            @Override
+            public void updated() {
+                next(zFile, null);
+            }
+        });
+    }
+
+    /**
+     * Updates the zip, timing it if it was registered. An update with nothing to write runs none of
+     * the callbacks, its time is reported as compression.
+     */
+    void update(ZFile zFile) throws IOException {
+        updating = start(Step.COMPRESSION);
+        try {
+            zFile.update();
+        } finally {
+            if (updating != null) {
+                updating.close();
+                updating = null;
+            }
+        }
+    }
+
+    private void next(ZFile zFile, Step step) {
+        if (updating == null) return;
+        var written = zFile.getBytesWritten();
+        if (updating.phase.step == Step.WRITE) {
+            updating.wrote(written - writtenBefore).entries(zFile.entries().size());
+        } else if (updating.phase.step == Step.SIGNING) {
+            updating.read(zFile.getFile().length()).wrote(written - writtenBefore);
+        }
+        updating.close();
+        writtenBefore = written;
+        updating = step == null ? null : start(step);
+    }
+
+    void finish() {
+        wallNanos = System.nanoTime() - start;
+        if (listener != null) listener.onPatched(this);
+    }
+
+    // java.lang.management is missing on android
+    private static final ThreadMXBean THREAD_MX_BEAN;
+
+    static {
+        ThreadMXBean bean;
+        try {
+            bean = ManagementFactory.getThreadMXBean();
+            if (!bean.isCurrentThreadCpuTimeSupported()) bean = null;
+        } catch (LinkageError e) {
+            bean = null;
+        }
+        THREAD_MX_BEAN = bean;
+    }
+
+    private static long threadCpuNanos() {
+        return THREAD_MX_BEAN == null ? -1 : THREAD_MX_BEAN.getCurrentThreadCpuTime();
+    }
+}
@@ -0,0 +1,133 @@
+package org.lsposed.patch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.lsposed.patch.util.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Patches apks on request from a process that stays warm, so jobs skip the JVM startup and find
+ * the signing key and the loader artifacts already loaded.
+ * A job is a POST to /patch whose body holds the command line arguments, one per line. The
+ * response is the log of the job, with status 200 on success, 400 on invalid arguments and 500
+ * on failure. Relative paths are resolved against the working directory of the server.
+ * Jobs can read and write anything the server can, so each request has to carry the token printed
+ * at startup as {@code Authorization: Bearer <token>}, and requests from browsers, which send an
+ * Origin or a Host other than the loopback address, are refused.
+ */
+class PatchServer {
+
+    private final LSPatch warm;
+
+    private final Logger logger;
+
+    private byte[] token;
+
+    private int port;
+
+    PatchServer(LSPatch warm, Logger logger) {
+        this.warm = warm;
+        this.logger = logger;
+    }
+
+    void start(int port) throws IOException {
+        logger.i("Preloading signer and loader artifacts...");
+        warm.preload();
+
+        var random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        var token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+        this.token = token.getBytes(StandardCharsets.US_ASCII);
+
+        // only local clients are accepted, and of those only the ones given the token
+        var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.port = server.getAddress().getPort();
+        server.createContext("/patch", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        server.start();
+        logger.i("Serving patch jobs on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + this.port + "/patch");
+        logger.i("Authorization: Bearer " + token);
+    }
+
+    // a page in a browser can post here too, but it cannot know the token and always sends an Origin
+    private boolean isAllowed(HttpExchange exchange) {
+        var headers = exchange.getRequestHeaders();
+        if (headers.containsKey("Origin")) return false;
+        var host = headers.getFirst("Host");
+        if (host == null || !(host.equals(InetAddress.getLoopbackAddress().getHostAddress() + ":" + port)
+                || host.equals("localhost:" + port))) return false;
+        var authorization = headers.getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) return false;
+        var given = authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(given, token);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!isAllowed(exchange)) {
+                logger.e("Refused a request from " + exchange.getRemoteAddress());
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            var args = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)
+                    .lines().filter(line -> !line.isEmpty()).toArray(String[]::new);
+
+            // jobs patching several apks log from several threads
+            var log = new StringBuffer();
+            var jobLogger = new Logger() {
+                @Override
+                public void d(String msg) {
+                    if (verbose) log.append(msg).append('\n');
+                }
+
+                @Override
+                public void i(String msg) {
+                    log.append(msg).append('\n');
+                }
+
+                @Override
+                public void e(String msg) {
+                    log.append(msg).append('\n');
+                }
+            };
+
+            long start = System.nanoTime();
+            int status;
+            try {
+                var job = new LSPatch(jobLogger, args);
+                if (job.hasJob()) {
+                    job.doCommandLine();
+                    status = 200;
+                } else {
+                    status = 400;
+                }
+            } catch (LSPatch.PatchError | Exception e) {
+                jobLogger.e(e.toString());
+                status = 500;
+            }
+            logger.i(String.format(Locale.ROOT, "Job finished with %d in %d ms", status, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+
+            var body = log.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+}
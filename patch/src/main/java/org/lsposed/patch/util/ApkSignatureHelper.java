@@ -8,6 +8,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.util.Enumeration;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -54,6 +55,10 @@ public class ApkSignatureHelper {
         }
     }
 
+    public static String getCertificateSignInfo(Certificate certificate) throws CertificateEncodingException {
+        return new String(toChars(certificate.getEncoded()));
+    }
+
     public static String getApkSignV1(String apkFilePath) {
         byte[] readBuffer = new byte[8192];
         Certificate[] certs = null;
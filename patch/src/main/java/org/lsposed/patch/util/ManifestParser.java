@@ -1,7 +1,5 @@
 package org.lsposed.patch.util;
 
-import com.wind.meditor.utils.Utils;
-
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -15,7 +13,7 @@ import pxb.android.axml.AxmlParser;
 public class ManifestParser {
 
     public static Pair parseManifestFile(InputStream is) throws IOException {
-        AxmlParser parser = new AxmlParser(Utils.getBytesFromInputStream(is));
+        AxmlParser parser = new AxmlParser(is.readAllBytes());
         String packageName = null;
         String appComponentFactory = null;
         int minSdkVersion = 0;
@@ -27,26 +25,26 @@ public class ManifestParser {
                     break;
                 }
                 if (type == AxmlParser.START_TAG) {
+                    // names are compared on the pool bytes, only the values read are decoded
+                    boolean manifest = parser.isName("manifest");
+                    boolean usesSdk = parser.isName("uses-sdk");
                     int attrCount = parser.getAttributeCount();
                     for (int i = 0; i < attrCount; i++) {
-                        String attrName = parser.getAttrName(i);
                         int attrNameRes = parser.getAttrResId(i);
 
-                        String name = parser.getName();
-                        
-                        if ("manifest".equals(name)) {
-                            if ("package".equals(attrName)) {
+                        if (manifest) {
+                            if (parser.isAttrName(i, "package")) {
                                 packageName = parser.getAttrValue(i).toString();
                             }
                         }
 
-                        if ("uses-sdk".equals(name)) {
-                            if ("minSdkVersion".equals(attrName)) {
+                        if (usesSdk) {
+                            if (parser.isAttrName(i, "minSdkVersion")) {
                                 minSdkVersion = Integer.parseInt(parser.getAttrValue(i).toString());
                             }
                         }
 
-                        if ("appComponentFactory".equals(attrName) || attrNameRes == 0x0101057a) {
+                        if (attrNameRes == 0x0101057a || parser.isAttrName(i, "appComponentFactory")) {
                             appComponentFactory = parser.getAttrValue(i).toString();
                         }
 
@@ -0,0 +1,128 @@
+package org.lsposed.patch.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content addressed store of patched apks.
+ * Outputs are named after a digest of everything that went into them and the least recently
+ * used ones are evicted once the total size goes over the limit.
+ * Caches of the same directory in one process share a lock, so that one does not evict what
+ * another is serving. Other processes may still do so, which is then a miss.
+ */
+public class PatchCache {
+    private static final String SUFFIX = ".apk";
+    // touched when an output is served, as its own time is shared with the links to it
+    private static final String USED_SUFFIX = ".used";
+    private static final Map<File, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private final File dir;
+    private final long maxBytes;
+    private final Object lock;
+
+    public PatchCache(File dir, long maxBytes) throws IOException {
+        Files.createDirectories(dir.toPath());
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        lock = LOCKS.computeIfAbsent(dir.getCanonicalFile(), ignore -> new Object());
+    }
+
+    /**
+     * Serves a cached output, as a hard link when the file system allows it.
+     * Cached files are read-only so that nothing writes through such a link.
+     *
+     * @return false if nothing is cached under the key
+     */
+    public boolean fetch(String key, File outputFile) throws IOException {
+        var cached = new File(dir, key + SUFFIX);
+        synchronized (lock) {
+            if (!cached.isFile()) return false;
+            try {
+                touch(key);
+                Files.deleteIfExists(outputFile.toPath());
+                try {
+                    Files.createLink(outputFile.toPath(), cached.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(cached.toPath(), outputFile.toPath());
+                    outputFile.setWritable(true);
+                }
+            } catch (NoSuchFileException e) {
+                // evicted by another process in the meantime
+                if (cached.exists()) throw e;
+                Files.deleteIfExists(new File(dir, key + USED_SUFFIX).toPath());
+                return false;
+            }
+            return true;
+        }
+    }
+
+    public void store(String key, File outputFile) throws IOException {
+        var tmp = File.createTempFile(key + "-", ".tmp", dir);
+        try {
+            Files.copy(outputFile.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            tmp.setWritable(false);
+            Files.move(tmp.toPath(), new File(dir, key + SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        touch(key);
+        evict();
+    }
+
+    /**
+     * Whether the file has other names, such as an output served from the cache, so that
+     * writing to it would change them too. The write permission does not tell, as root ignores it.
+     */
+    public static boolean isLinked(File file) {
+        try {
+            return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue() > 1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void touch(String key) throws IOException {
+        var used = new File(dir, key + USED_SUFFIX);
+        if (!used.createNewFile())
+            used.setLastModified(System.currentTimeMillis());
+    }
+
+    private File usedOf(File cached) {
+        var name = cached.getName();
+        return new File(dir, name.substring(0, name.length() - SUFFIX.length()) + USED_SUFFIX);
+    }
+
+    private long lastUsed(File cached) {
+        var used = usedOf(cached);
+        return used.isFile() ? used.lastModified() : cached.lastModified();
+    }
+
+    private void evict() throws IOException {
+        synchronized (lock) {
+            var files = dir.listFiles((ignore, name) -> name.endsWith(SUFFIX));
+            if (files == null) return;
+            long total = 0;
+            List<File> byAge = new ArrayList<>();
+            for (var file : files) {
+                total += file.length();
+                byAge.add(file);
+            }
+            byAge.sort(Comparator.comparingLong(this::lastUsed));
+            for (var file : byAge) {
+                if (total <= maxBytes) break;
+                long size = file.length();
+                Files.deleteIfExists(file.toPath());
+                Files.deleteIfExists(usedOf(file).toPath());
+                total -= size;
+            }
+        }
+    }
+}
@@ -32,6 +32,7 @@ dependencyResolutionManagement {
 rootProject.name = "LSPatch"
 include(
     ":apkzlib",
+    ":benchmarks",
     ":core",
     ":hiddenapi:bridge",
     ":hiddenapi:stubs",